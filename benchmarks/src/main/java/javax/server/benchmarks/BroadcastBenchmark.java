@@ -0,0 +1,91 @@
+package javax.server.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.server.Client;
+import javax.server.ClientAdapter;
+import javax.server.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out throughput of {@code Server.sendToAll()}, until every client has
+ * received the message, against the amount of connected clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	private static final int PORT = 47002;
+
+	@Param({ "1", "10", "100", "500" })
+	public int clientCount;
+
+	@Param({ Transport.THREADS, Transport.SELECTOR, Transport.CODEC })
+	public String transport;
+
+	/*
+	 * A mid sized game state update.
+	 */
+	private final int[] payload = new int[256];
+
+	private Server server;
+	private Client[] clients;
+	private AtomicLong received;
+	private long expected;
+
+	@Setup
+	public void setUp() {
+		server = new Server(PORT);
+		Transport.configure(server, transport);
+		if (!server.start())
+			throw new IllegalStateException("Server could not start on port " + PORT);
+
+		received = new AtomicLong();
+		clients = new Client[clientCount];
+		for (int i = 0; i < clientCount; i++) {
+			clients[i] = Transport.connect(PORT, transport);
+			clients[i].addClientListener(new ClientAdapter() {
+				@Override
+				public void messageReceived(Client client, Object msg) {
+					received.incrementAndGet();
+				}
+			});
+		}
+
+		// authentication completes asynchronously on the server
+		while (server.getClients().size() < clientCount)
+			Thread.onSpinWait();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Client c : clients)
+			c.shutDown();
+		server.shutDown();
+	}
+
+	@Benchmark
+	public void sendToAll() {
+		expected += clientCount;
+		server.sendToAll(payload);
+		while (received.get() < expected)
+			Thread.onSpinWait();
+	}
+}
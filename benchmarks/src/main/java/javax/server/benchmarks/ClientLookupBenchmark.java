@@ -0,0 +1,108 @@
+package javax.server.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.server.Client;
+import javax.server.Server;
+import javax.server.Server.ConnectionToClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of client lookups by id, as done for every dispatched message,
+ * against the amount of threads looking up concurrently. {@code server} is
+ * {@code Server.getClient()}; the other registries hold the same clients, for
+ * comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientLookupBenchmark {
+
+	private static final int PORT = 47005;
+	private static final int CLIENTS = 64;
+
+	@Param({ "server", "synchronized", "concurrent" })
+	public String registry;
+
+	private Server server;
+	private Client[] clients;
+	private int[] ids;
+	private Map<Integer, ConnectionToClient> map;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Setup
+	public void setUp() {
+		server = new Server(PORT);
+		if (!server.start())
+			throw new IllegalStateException("Server could not start on port " + PORT);
+
+		clients = new Client[CLIENTS];
+		ids = new int[CLIENTS];
+		for (int i = 0; i < CLIENTS; i++) {
+			clients[i] = Transport.connect(PORT, Transport.THREADS);
+			ids[i] = clients[i].getClientId();
+		}
+
+		if (registry.equals("synchronized"))
+			map = Collections.synchronizedMap(new HashMap<>());
+		else if (registry.equals("concurrent"))
+			map = new ConcurrentHashMap<>();
+		if (map != null)
+			for (int id : ids)
+				map.put(id, server.getClient(id));
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Client c : clients)
+			c.shutDown();
+		server.shutDown();
+	}
+
+	private ConnectionToClient lookup(Cursor cursor) {
+		int id = ids[cursor.next++ & (CLIENTS - 1)];
+		return map == null ? server.getClient(id) : map.get(id);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public ConnectionToClient threads1(Cursor cursor) {
+		return lookup(cursor);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public ConnectionToClient threads4(Cursor cursor) {
+		return lookup(cursor);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public ConnectionToClient threads8(Cursor cursor) {
+		return lookup(cursor);
+	}
+}
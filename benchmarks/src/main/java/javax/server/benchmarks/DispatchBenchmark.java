@@ -0,0 +1,98 @@
+package javax.server.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.server.Client;
+import javax.server.Server;
+import javax.server.Server.ConnectionToClient;
+import javax.server.ServerAdapter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of received messages handed to the listeners, against the amount
+ * of message handling threads. Each message costs the listener a little work,
+ * so extra threads have something to parallelize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+	private static final int PORT = 47004;
+	private static final int CLIENTS = 8;
+	private static final int BATCH = 64;
+
+	@Param({ "1", "2", "4", "8" })
+	public int messageHandlingThreadCount;
+
+	@Param({ "false", "true" })
+	public boolean orderedDispatch;
+
+	@Param({ "100" })
+	public int listenerTokens;
+
+	private Server server;
+	private Client[] clients;
+	private AtomicLong handled;
+	private long expected;
+
+	@Setup
+	public void setUp() {
+		server = new Server(PORT, messageHandlingThreadCount);
+		server.setOrderedDispatch(orderedDispatch);
+		handled = new AtomicLong();
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, ConnectionToClient client, Object msg) {
+				Blackhole.consumeCPU(listenerTokens);
+				handled.incrementAndGet();
+			}
+		});
+		if (!server.start())
+			throw new IllegalStateException("Server could not start on port " + PORT);
+
+		clients = new Client[CLIENTS];
+		for (int i = 0; i < CLIENTS; i++)
+			clients[i] = Transport.connect(PORT, Transport.THREADS);
+
+		while (server.getClients().size() < CLIENTS)
+			Thread.onSpinWait();
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (Client c : clients)
+			c.shutDown();
+		server.shutDown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLIENTS * BATCH)
+	public void dispatch() {
+		for (int i = 0; i < BATCH; i++)
+			for (Client c : clients)
+				c.send(i);
+
+		expected += CLIENTS * BATCH;
+		while (handled.get() < expected)
+			Thread.onSpinWait();
+	}
+}
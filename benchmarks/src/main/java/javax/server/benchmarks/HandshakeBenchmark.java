@@ -0,0 +1,62 @@
+package javax.server.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.server.Client;
+import javax.server.Server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Connect rate: a client connecting, going through the server's
+ * authentication, and disconnecting again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class HandshakeBenchmark {
+
+	private static final int PORT = 47003;
+
+	@Param({ Transport.THREADS, Transport.SELECTOR })
+	public String transport;
+
+	private Server server;
+
+	@Setup
+	public void setUp() {
+		server = new Server(PORT);
+		Transport.configure(server, transport);
+		if (!server.start())
+			throw new IllegalStateException("Server could not start on port " + PORT);
+	}
+
+	@TearDown
+	public void tearDown() {
+		server.shutDown();
+	}
+
+	@Benchmark
+	public int connect() {
+		Client client = Transport.connect(PORT, transport);
+		int id = client.getClientId();
+		client.shutDown();
+		return id;
+	}
+}
@@ -0,0 +1,81 @@
+package javax.server.benchmarks;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.server.Client;
+import javax.server.ClientAdapter;
+import javax.server.Server;
+import javax.server.Server.ConnectionToClient;
+import javax.server.ServerAdapter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round-trip latency of a message sent by a client, echoed back by the
+ * server, over loopback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	private static final int PORT = 47001;
+
+	@Param({ Transport.THREADS, Transport.SELECTOR, Transport.CODEC })
+	public String transport;
+
+	private Server server;
+	private Client client;
+	private BlockingQueue<Object> replies;
+
+	@Setup
+	public void setUp() {
+		server = new Server(PORT);
+		Transport.configure(server, transport);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, ConnectionToClient client, Object msg) {
+				server.send((String) msg, client.getClientId());
+			}
+		});
+		if (!server.start())
+			throw new IllegalStateException("Server could not start on port " + PORT);
+
+		replies = new LinkedBlockingQueue<>();
+		client = Transport.connect(PORT, transport);
+		client.addClientListener(new ClientAdapter() {
+			@Override
+			public void messageReceived(Client client, Object msg) {
+				replies.add(msg);
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.shutDown();
+		server.shutDown();
+	}
+
+	@Benchmark
+	public Object roundTrip() throws InterruptedException {
+		client.send("ping");
+		return replies.take();
+	}
+}
@@ -0,0 +1,57 @@
+package javax.server.benchmarks;
+
+import javax.server.Client;
+import javax.server.SerializationCodec;
+import javax.server.Server;
+
+/*
+ * The transport configurations benchmarks may be parameterized with.
+ */
+final class Transport {
+
+	/*
+	 * Object streams, a reading thread per client.
+	 */
+	static final String THREADS = "threads";
+
+	/*
+	 * Frames, multiplexed by selector threads.
+	 */
+	static final String SELECTOR = "selector";
+
+	/*
+	 * Frames, a reading thread per client.
+	 */
+	static final String CODEC = "codec";
+
+	private Transport() {
+	}
+
+	static void configure(Server server, String transport) {
+		switch (transport) {
+		case THREADS:
+			break;
+		case SELECTOR:
+			server.setSelectorThreadCount(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+			break;
+		case CODEC:
+			server.setMessageCodec(new SerializationCodec());
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown transport: " + transport);
+		}
+	}
+
+	static void configure(Client client, String transport) {
+		if (CODEC.equals(transport))
+			client.setMessageCodec(new SerializationCodec());
+	}
+
+	static Client connect(int port, String transport) {
+		Client client = new Client("localhost", port);
+		configure(client, transport);
+		if (!client.start())
+			throw new IllegalStateException("Client could not connect to port " + port);
+		return client;
+	}
+}
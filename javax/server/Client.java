@@ -1,13 +1,27 @@
 package javax.server;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 
+import javax.crypto.Mac;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
 /**
  * This class, represents a client which can connect to a server (that uses, or
  * subclasses {@linkplain Server}) and interact with. Its implementation uses
@@ -26,7 +40,8 @@ public class Client {
 	private ConnectionToServer connection;
 
 	/*
-	 * all incoming messages are queued here.
+	 * all incoming messages are queued here. The reading thread blocks while
+	 * it is full.
 	 */
 	private LinkedBlockingQueue<Object> messages;
 
@@ -58,7 +73,61 @@ public class Client {
 	/*
 	 * where listeners are saved.
 	 */
-	private List<ClientListener> listeners;
+	private Listeners<ClientListener> listeners;
+
+	/*
+	 * Handlers of received messages, by message type.
+	 */
+	private Routes<ClientHandler<?>> routes;
+
+	/*
+	 * whether the client's threads are virtual threads.
+	 */
+	private boolean virtualThreads;
+
+	/*
+	 * Encodes frames, if the server asks for them.
+	 */
+	private MessageCodec codec;
+
+	/*
+	 * Preset dictionaries, in case the server enables compression.
+	 */
+	private byte[][] compressionDictionaries;
+
+	/*
+	 * TLS, null for a plain connection.
+	 */
+	private SSLContext sslContext;
+
+	/*
+	 * Whether the server's certificate must match the server address.
+	 */
+	private boolean verifyHostname;
+
+	/*
+	 * The name of an in-process server, null to connect over TCP.
+	 */
+	private String localName;
+
+	/*
+	 * The server's Unix domain socket, null to connect over TCP.
+	 */
+	private Path unixSocketPath;
+
+	/*
+	 * Write coalescing; a batch size of 1 and no linger means every message is
+	 * flushed on its own.
+	 */
+	private int writeBatchSize;
+	private long writeLingerNanos;
+	private int sendQueueCapacity;
+
+	/*
+	 * Requests waiting for their response, by correlation id.
+	 */
+	private ConcurrentHashMap<Long, CompletableFuture<Object>> pendingRequests;
+	private AtomicLong nextRequestId;
 
 	/**
 	 * Maximum time allowed for new connection to hang, on authentication and
@@ -84,7 +153,15 @@ public class Client {
 		this.port = port;
 		id = new AtomicInteger(0);
 		messages = new LinkedBlockingQueue<>();
-		listeners = Collections.synchronizedList(new ArrayList<>());
+		listeners = new Listeners<>(new ClientListener[0]);
+		routes = new Routes<>(new ClientHandler<?>[0]);
+		codec = Frames.DEFAULT_CODEC;
+		compressionDictionaries = new byte[0][];
+		verifyHostname = true;
+		writeBatchSize = 1;
+		sendQueueCapacity = 1024;
+		pendingRequests = new ConcurrentHashMap<>();
+		nextRequestId = new AtomicLong();
 		alive = true;
 
 		addClientListener(new ClientAdapter() {
@@ -96,6 +173,47 @@ public class Client {
 		});
 	}
 
+	/**
+	 * Constructs a {@code Client} connecting in-process to the server running
+	 * in the same JVM under the given name (see
+	 * {@linkplain Server#setLocalName}). Messages are handed over in memory,
+	 * without sockets; otherwise the client behaves the same as over TCP.
+	 * 
+	 * <p>
+	 * The client will start running when the {@code start()} method is invoked.
+	 * it can be stopped, by calling {@code shutDown()}.
+	 * 
+	 * @param localName
+	 *            The name of the server to connect to.
+	 */
+	public Client(String localName) {
+		this(null, -1);
+		if (localName == null)
+			throw new NullPointerException("localName");
+		this.localName = localName;
+	}
+
+	/**
+	 * Constructs a {@code Client} connecting to a server on the same host,
+	 * over the Unix domain socket at the given path (see
+	 * {@linkplain Server#setUnixSocketPath}). Apart from skipping the TCP
+	 * stack, the client behaves the same as over TCP; the connection is never
+	 * encrypted, even if {@code setSSLContext()} is set.
+	 * 
+	 * <p>
+	 * The client will start running when the {@code start()} method is invoked.
+	 * it can be stopped, by calling {@code shutDown()}.
+	 * 
+	 * @param unixSocketPath
+	 *            The path of the server's socket file.
+	 */
+	public Client(Path unixSocketPath) {
+		this(null, -1);
+		if (unixSocketPath == null)
+			throw new NullPointerException("unixSocketPath");
+		this.unixSocketPath = unixSocketPath;
+	}
+
 	/**
 	 * Returns if the client is currently running. This may be changed either by
 	 * the {@code shutDown()} method, or by any error occurring to the client or
@@ -120,7 +238,7 @@ public class Client {
 	/**
 	 * Returns a unique ID, assigned by the server at connection, which will
 	 * identify this client through all other clients currently connected to the
-	 * server. The id number has no actual value, it is just an arbitrary random
+	 * server. The id number has no actual value, it is just an arbitrary
 	 * number.
 	 * 
 	 * <p>
@@ -133,6 +251,10 @@ public class Client {
 	 * is connected to server. Once disconnected and notified listeners, the id
 	 * will always be 0.
 	 * 
+	 * <p>
+	 * The server hands out ids in sequence, so they are predictable; other
+	 * parties can guess them, and they must never serve as a secret.
+	 * 
 	 * @return This clients unique ID, assigned by server.
 	 */
 	public int getClientId() {
@@ -157,6 +279,24 @@ public class Client {
 		return port;
 	}
 
+	/**
+	 * Returns the name of the in-process server this client connects to.
+	 * 
+	 * @return The local name, or {@code null} if connecting over TCP.
+	 */
+	public String getLocalName() {
+		return localName;
+	}
+
+	/**
+	 * Returns the path of the Unix domain socket this client connects to.
+	 * 
+	 * @return The socket file path, or {@code null} if connecting over TCP.
+	 */
+	public Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
 	/**
 	 * Initialization on every received message. A subclass may return a
 	 * different object (e.g. after decode), that will be forwarded to the
@@ -209,9 +349,10 @@ public class Client {
 	 * server. a subclass may exchange any information - as passwords - from or
 	 * to server, as long {@linkplain Server#connectionInit} is overridden
 	 * accordingly. The subclass may, as well, do here any initialization
-	 * required for new connection. Examples include, wrapping the streams (e.g.
-	 * with {@code javax.crypto.CipherOutputStream} - for network security),
-	 * which is allowed, as long the top-most stream is an Object stream.
+	 * required for new connection. Wrapping the streams is allowed, as long the
+	 * top-most stream is an Object stream; for network security use
+	 * {@linkplain #setSSLContext} instead, which has encrypted the connection
+	 * before this method is called.
 	 * 
 	 * <p>
 	 * In any event, where a subclass want's to prevent the connection, it
@@ -278,6 +419,92 @@ public class Client {
 		return getConnection().send(msg);
 	}
 
+	/**
+	 * Sends given serializable object to the server over the unreliable side
+	 * channel, as a single datagram, if the server has one (see
+	 * {@linkplain Server#setDatagramPort}). It may be lost, or dropped if a
+	 * later one arrives first, but never waits behind other messages, nor
+	 * holds them up. Connected in-process, the message is sent like any
+	 * other.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return If the datagram has been sent; {@code false} if the server has
+	 *         no side channel.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the message is too large for a single datagram.
+	 */
+	public boolean sendUnreliable(Serializable msg) {
+		return getConnection().sendUnreliable(msg);
+	}
+
+	/**
+	 * Sends a message to the server and returns a future completing with the
+	 * server's reply. The server receives a {@linkplain Request} wrapping the
+	 * message, and answers with
+	 * {@linkplain Server.ConnectionToClient#reply(Request, Serializable)}.
+	 * 
+	 * <p>
+	 * Any amount of requests may be in flight at once; replies are matched by
+	 * correlation id, in whatever order they arrive, and are not forwarded to
+	 * the listeners. The future completes on the message handling thread.
+	 * 
+	 * <p>
+	 * The future completes exceptionally with an {@code IOException} if the
+	 * request could not be sent, or the client shuts down first, and with a
+	 * {@code TimeoutException} if no reply arrived in time. A reply arriving
+	 * after the timeout is dropped.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @param timeout
+	 *            How long to wait for the reply, {@code null} to wait
+	 *            indefinitely.
+	 * @return A future completing with the reply.
+	 */
+	public CompletableFuture<Object> request(Serializable msg, Duration timeout) {
+		if (msg == null)
+			throw new NullPointerException("msg");
+
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		if (!running()) {
+			future.completeExceptionally(new IOException("Client is not running."));
+			return future;
+		}
+
+		long requestId = nextRequestId.incrementAndGet();
+		pendingRequests.put(requestId, future);
+		future.whenComplete((r, t) -> pendingRequests.remove(requestId));
+		if (timeout != null)
+			future.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+		if (!send(new Request(requestId, msg)))
+			future.completeExceptionally(new IOException("Request could not be sent."));
+		return future;
+	}
+
+	/**
+	 * Returns the amount of messages sent but not yet flushed to the socket,
+	 * when writes are coalesced (see {@code setWriteBatchSize()}). Otherwise
+	 * sends are written right away, and this is always 0.
+	 * 
+	 * @return The amount of queued sends.
+	 */
+	public int getQueuedSendCount() {
+		ConnectionToServer con = connection;
+		return con == null ? 0 : con.unflushed.get();
+	}
+
+	/**
+	 * Returns the amount of requests waiting for a reply.
+	 * 
+	 * @return The amount of pending requests.
+	 */
+	public int getPendingRequestCount() {
+		return pendingRequests.size();
+	}
+
 	/**
 	 * Returns the connection to the server.
 	 * 
@@ -308,8 +535,337 @@ public class Client {
 		listeners.remove(cl);
 	}
 
+	/**
+	 * Registers a handler for received messages of the given type, its
+	 * subclasses and implementations. Unlike a {@code ClientListener}, that
+	 * is offered every message, a handler is only called for its own type:
+	 * the handlers of each concrete message class are looked up once, and
+	 * cached.
+	 * 
+	 * <p>
+	 * Handlers are called on the message handling thread, with the message
+	 * returned by {@code messageReceivedInit()}, in the order they were
+	 * registered, before the listeners. Commands and request responses are
+	 * not routed to handlers.
+	 * 
+	 * @param type
+	 *            The type of messages to handle.
+	 * @param handler
+	 *            The handler to register.
+	 */
+	public <T> void on(Class<T> type, ClientHandler<? super T> handler) {
+		routes.add(type, handler);
+	}
+
+	/**
+	 * Unregisters a handler, registered with {@code on()} for the same type.
+	 * 
+	 * @param type
+	 *            The type the handler was registered for.
+	 * @param handler
+	 *            The handler to remove.
+	 */
+	public <T> void off(Class<T> type, ClientHandler<? super T> handler) {
+		routes.remove(type, handler);
+	}
+
 	private volatile boolean started = false;
 
+	/**
+	 * Sets whether reading and message handling should run on virtual threads,
+	 * instead of platform threads.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param virtual
+	 *            Whether to use virtual threads.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 * @throws UnsupportedOperationException
+	 *             If the runtime does not support virtual threads.
+	 */
+	public void setVirtualThreads(boolean virtual) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		if (virtual && !Threads.virtualSupported())
+			throw new UnsupportedOperationException("Virtual threads are not supported by this runtime.");
+		virtualThreads = virtual;
+	}
+
+	/**
+	 * Returns whether the client's threads are virtual threads.
+	 * 
+	 * @return Whether the client's threads are virtual threads.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sets the context used to connect with TLS, required if the server uses
+	 * TLS (see {@linkplain Server#setSSLContext}).
+	 * 
+	 * <p>
+	 * The context caches sessions per server address and port, so sharing one
+	 * context among clients (e.g. all clients of a {@linkplain ClientPool}, or
+	 * a client replacing a disconnected one) lets them resume a session
+	 * instead of running a full handshake.
+	 * 
+	 * <p>
+	 * The server's certificate must not only be trusted by the context, but
+	 * also be issued to the server address, unless
+	 * {@code setHostnameVerification()} says otherwise.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param context
+	 *            The TLS context, or {@code null} for a plain connection.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setSSLContext(SSLContext context) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		sslContext = context;
+	}
+
+	/**
+	 * Returns the context used to connect with TLS.
+	 * 
+	 * @return The TLS context, or {@code null} for a plain connection.
+	 */
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Sets whether, with TLS, the server's certificate must be issued to the
+	 * server address this client connects to, as HTTPS checks it. Otherwise
+	 * any certificate trusted by the context is accepted, whichever host it
+	 * belongs to; only turn this off if the context trusts nothing but the
+	 * server's own certificate (e.g. a self signed one). The default is
+	 * {@code true}.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param verify
+	 *            Whether to verify the server's host name.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setHostnameVerification(boolean verify) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		verifyHostname = verify;
+	}
+
+	/**
+	 * Returns whether, with TLS, the server's host name is verified.
+	 * 
+	 * @return Whether the server's host name is verified.
+	 */
+	public boolean isHostnameVerification() {
+		return verifyHostname;
+	}
+
+	/**
+	 * Sets the codec used to encode and decode messages, if the server asks to
+	 * send length prefixed frames instead of using the Object streams. It must
+	 * be compatible with the codec set by {@linkplain Server#setMessageCodec}.
+	 * {@code null} resets to the default {@linkplain SerializationCodec}.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param codec
+	 *            The codec to use, or {@code null} for the default.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setMessageCodec(MessageCodec codec) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		this.codec = codec != null ? codec : Frames.DEFAULT_CODEC;
+	}
+
+	/**
+	 * Sets the maximum amount of received messages waiting to be handled. Once
+	 * full, the reading thread blocks until there is room again, so a flooding
+	 * server is pushed back by TCP flow control, rather than growing the heap.
+	 * 
+	 * <p>
+	 * The default is unbounded. This method must be called before the client
+	 * is started.
+	 * 
+	 * @param capacity
+	 *            The maximum amount of queued messages.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setMessageQueueCapacity(int capacity) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		messages = new LinkedBlockingQueue<>(Math.max(1, capacity));
+	}
+
+	/**
+	 * Returns the maximum amount of received messages waiting to be handled.
+	 * 
+	 * @return The maximum amount of queued messages.
+	 */
+	public int getMessageQueueCapacity() {
+		return messages.size() + messages.remainingCapacity();
+	}
+
+	/**
+	 * Returns the amount of received messages currently waiting to be
+	 * handled.
+	 * 
+	 * @return The amount of queued messages.
+	 */
+	public int getMessageQueueDepth() {
+		return messages.size();
+	}
+
+	/**
+	 * Sets the maximum amount of messages written to the server with a single
+	 * flush. If larger than 1, or a linger time is set, all sends are queued
+	 * and a writer thread writes everything queued since the last flush at
+	 * once, trading a little latency for far less system calls.
+	 * {@code send()} then returns once the message is queued.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param size
+	 *            The maximum amount of messages per flush, 1 to flush every
+	 *            message.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setWriteBatchSize(int size) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		writeBatchSize = Math.max(1, size);
+	}
+
+	/**
+	 * Returns the maximum amount of messages written with a single flush.
+	 * 
+	 * @return The maximum amount of messages per flush.
+	 */
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+	/**
+	 * Sets how long the writer thread may wait for further messages, before
+	 * flushing a batch that is not full. See {@code setWriteBatchSize()}.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param millis
+	 *            The maximum linger time in milliseconds, 0 to flush as soon as
+	 *            the queue is empty.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setWriteLinger(long millis) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		writeLingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Returns how long the writer thread may wait for further messages, before
+	 * flushing a batch that is not full.
+	 * 
+	 * @return The maximum linger time in milliseconds.
+	 */
+	public long getWriteLinger() {
+		return TimeUnit.NANOSECONDS.toMillis(writeLingerNanos);
+	}
+
+	/**
+	 * Sets the maximum amount of messages queued for writing, when writes are
+	 * coalesced (see {@code setWriteBatchSize()}). Sending blocks while the
+	 * queue is full. The default is 1024.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param capacity
+	 *            The maximum amount of queued messages.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setSendQueueCapacity(int capacity) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		sendQueueCapacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Returns the maximum amount of messages queued for writing, when writes
+	 * are coalesced.
+	 * 
+	 * @return The maximum amount of queued messages.
+	 */
+	public int getSendQueueCapacity() {
+		return sendQueueCapacity;
+	}
+
+	/**
+	 * Returns the codec used to encode and decode frames.
+	 * 
+	 * @return The codec used to encode and decode frames.
+	 */
+	public MessageCodec getMessageCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the preset dictionaries used if the server enables compression.
+	 * They must be the same as set by
+	 * {@linkplain Server#setCompressionDictionaries}; the compression
+	 * threshold itself is decided by the server.
+	 * 
+	 * <p>
+	 * This method must be called before the client is started.
+	 * 
+	 * @param dictionaries
+	 *            The dictionaries, none to compress without.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the client has already been started.
+	 */
+	public void setCompressionDictionaries(byte[]... dictionaries) {
+		if (started)
+			throw new IllegalStateException("Client already started.");
+		compressionDictionaries = dictionaries == null ? new byte[0][] : dictionaries.clone();
+	}
+
+	/**
+	 * Returns the preset dictionaries used if the server enables compression.
+	 * 
+	 * @return The dictionaries, possibly none.
+	 */
+	public byte[][] getCompressionDictionaries() {
+		return compressionDictionaries.clone();
+	}
+
 	/**
 	 * Starts the client, and returns if it has successfully started.
 	 * 
@@ -335,9 +891,30 @@ public class Client {
 		ObjectInputStream in = null;
 		ObjectOutputStream out = null;
 		try {
-			socket = new Socket(serverAddress, port);
-			out = new ObjectOutputStream(socket.getOutputStream());
-			in = new ObjectInputStream(socket.getInputStream());
+			if (localName != null) {
+				LocalSocket local = Server.connectLocal(localName);
+				socket = local;
+				out = local.getObjectOutput();
+				in = local.getObjectInput();
+			} else {
+				if (unixSocketPath != null) {
+					socket = UnixSocket.connect(unixSocketPath);
+				} else if (sslContext == null) {
+					socket = new Socket(serverAddress, port);
+				} else {
+					SSLSocket ssl = (SSLSocket) sslContext.getSocketFactory().createSocket(serverAddress, port);
+					socket = ssl;
+					if (verifyHostname) {
+						SSLParameters params = ssl.getSSLParameters();
+						params.setEndpointIdentificationAlgorithm("HTTPS");
+						ssl.setSSLParameters(params);
+					}
+					ssl.setSoTimeout(TIMEOUT);
+					ssl.startHandshake();
+				}
+				out = new ObjectOutputStream(socket.getOutputStream());
+				in = new ObjectInputStream(socket.getInputStream());
+			}
 
 			connection = authenticate(socket, in, out);
 
@@ -345,6 +922,8 @@ public class Client {
 			try {
 				if (out != null)
 					out.close();
+				else if (socket != null)
+					socket.close();
 			} catch (IOException e1) {
 			}
 			return false;
@@ -356,12 +935,10 @@ public class Client {
 		}
 		running = true;
 
-		Thread messageHandling = new Thread(new MessageHandling(), "Message handling thread");
-		messageHandling.setDaemon(true);
-		messageHandling.start();
+		Threads.start(virtualThreads, new MessageHandling(), "Message handling thread");
 		connection.startReading();
 
-		for (ClientListener cl : listeners)
+		for (ClientListener cl : listeners.get())
 			cl.connected(this);
 
 		return true;
@@ -430,16 +1007,30 @@ public class Client {
 			return;
 
 		try {
-			if (!con.socket.isClosed())
-				con.out.writeObject(ClientCommand.DISCONNECT);
+			if (!con.socket.isClosed()) {
+				con.writeQueued();
+				con.write(ClientCommand.DISCONNECT);
+			}
 
 			con.in.close();
 			con.out.close();
 		} catch (IOException e) {
 		}
+		try {
+			if (con.datagramChannel != null)
+				con.datagramChannel.close();
+		} catch (IOException e) {
+		}
+
+		if (con.writer != null)
+			con.writer.interrupt();
+
+		IOException closed = new IOException("Client shut down.");
+		for (CompletableFuture<Object> future : pendingRequests.values())
+			future.completeExceptionally(closed);
 
 		disconnectionInit();
-		for (ClientListener cl : listeners)
+		for (ClientListener cl : listeners.get())
 			cl.disconnected(this);
 
 		id.set(0);
@@ -483,18 +1074,38 @@ public class Client {
 
 			Object connected = in.readObject();
 
-			if (connected != ServerCommand.CONNECTED) {
+			if (connected == ServerCommand.CONNECTED_FRAMED) {
+				// negative if the server doesn't compress
+				int threshold = in.readInt();
+				MessageCodec frameCodec = codec;
+				if (threshold >= 0)
+					frameCodec = new CompressionCodec(codec, threshold, compressionDictionaries);
+				if (cts != null)
+					cts.useFrames(frameCodec);
+			} else if (connected != ServerCommand.CONNECTED) {
 				System.err.println(connected);
 				return null;
 			}
 
+			// negative if the server has no side channel
+			int datagramPort = in.readInt();
+			if (datagramPort >= 0) {
+				byte[] key = new byte[Datagrams.KEY_LENGTH];
+				in.readFully(key);
+				if (cts != null)
+					cts.useDatagrams(datagramPort, key);
+			}
+
 		} catch (ClassNotFoundException | IOException e) {
 			e.printStackTrace();
 			return null;
 		}
 		try {
 			socket.setSoTimeout(0);
-		} catch (SocketException e) {
+			// the reading thread keeps using the streams
+			if (socket instanceof UnixSocket)
+				((UnixSocket) socket).useBlocking();
+		} catch (IOException e) {
 		}
 		return cts;
 	}
@@ -512,19 +1123,28 @@ public class Client {
 					if (msg == null)
 						continue;
 
-					if (msg instanceof Command) {
+					if (msg instanceof Response) {
+						Response response = (Response) msg;
+						CompletableFuture<Object> future = pendingRequests.get(response.getId());
+						if (future != null) // otherwise timed out
+							future.complete(response.getPayload());
+
+					} else if (msg instanceof Command) {
 						msg = commandReceivedInit((Command) msg);
 
 						if (msg != null)
-							for (ClientListener cl : listeners)
+							for (ClientListener cl : listeners.get())
 								cl.commandReceived(Client.this, (Command) msg);
 
 					} else {
 						msg = messageReceivedInit(msg);
 
-						if (msg != null)
-							for (ClientListener cl : listeners)
+						if (msg != null) {
+							for (ClientHandler<?> h : routes.get(msg.getClass()))
+								handle(h, msg);
+							for (ClientListener cl : listeners.get())
 								cl.messageReceived(Client.this, msg);
+						}
 
 					}
 				} catch (InterruptedException e) {
@@ -534,6 +1154,14 @@ public class Client {
 				}
 			}
 		}
+
+		/*
+		 * The routes only hold handlers of a supertype of the message.
+		 */
+		@SuppressWarnings("unchecked")
+		private void handle(ClientHandler<?> handler, Object msg) {
+			((ClientHandler<Object>) handler).handle(Client.this, msg);
+		}
 	}
 
 	/**
@@ -547,6 +1175,37 @@ public class Client {
 		private ObjectInputStream in;
 		private ObjectOutputStream out;
 
+		/*
+		 * The raw socket streams, used instead of the Object streams if the
+		 * server sends length prefixed frames.
+		 */
+		private DataInputStream frameIn;
+		private OutputStream frameOut;
+		private MessageCodec codec;
+
+		/*
+		 * Queued sends, when writes are coalesced.
+		 */
+		private ArrayBlockingQueue<Serializable> outbox;
+		private Writing writing;
+		private Thread writer;
+
+		/*
+		 * Queued sends, plus those the writer has taken but not yet flushed.
+		 */
+		private final AtomicInteger unflushed = new AtomicInteger();
+
+		/*
+		 * The unreliable side channel, null if the server has none; Macs keyed
+		 * by the server, one to send and one for the reading thread, and the
+		 * sequence numbers of either direction.
+		 */
+		private DatagramChannel datagramChannel;
+		private Mac datagramSendMac;
+		private Mac datagramReceiveMac;
+		private AtomicLong datagramSeq;
+		private long lastDatagramSeq;
+
 		/**
 		 * Constructs a new instance of a server connection.
 		 * 
@@ -566,10 +1225,131 @@ public class Client {
 			this.out = out;
 		}
 
+		/*
+		 * Switches to length prefixed frames, as requested by the server.
+		 */
+		private void useFrames(MessageCodec codec) throws IOException {
+			this.codec = codec;
+			frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			frameOut = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		/*
+		 * Opens the side channel, to the port the server told.
+		 */
+		private void useDatagrams(int port, byte[] key) throws IOException {
+			datagramSendMac = Datagrams.mac(key);
+			datagramReceiveMac = Datagrams.mac(key);
+			datagramSeq = new AtomicLong();
+			datagramChannel = DatagramChannel.open();
+			try {
+				datagramChannel.connect(new InetSocketAddress(socket.getInetAddress(), port));
+			} catch (IOException e) {
+				datagramChannel.close();
+				throw e;
+			}
+		}
+
+		/*
+		 * Tells the server where this client is, with an empty datagram. It
+		 * may well be lost, so this is repeated on every heartbeat.
+		 */
+		private void registerDatagrams() {
+			try {
+				sendDatagram(null);
+			} catch (IOException e) {
+			}
+		}
+
+		/*
+		 * Sends a datagram, msg may be null.
+		 */
+		private void sendDatagram(Object msg) throws IOException {
+			datagramChannel.write(Datagrams.encode(Client.this.codec, datagramSendMac, Datagrams.TO_SERVER, getClientId(),
+					datagramSeq.incrementAndGet(), msg));
+		}
+
+		/*
+		 * Reads a single object, from the Object stream or as a frame.
+		 */
+		private Object read() throws IOException, ClassNotFoundException {
+			if (frameIn == null)
+				return in.readObject();
+			return Frames.read(codec, frameIn);
+		}
+
+		/*
+		 * Writes a single object, to the Object stream or as a frame.
+		 */
+		private void write(Object msg) throws IOException {
+			synchronized (streamLock()) {
+				writeBuffered(msg);
+				flushStream();
+			}
+		}
+
+		/*
+		 * Writes to the stream without flushing. Callers must hold the
+		 * streamLock().
+		 */
+		private void writeBuffered(Object msg) throws IOException {
+			if (frameOut == null) {
+				out.writeObject(msg);
+				out.reset();
+				return;
+			}
+
+			ByteBuffer frame = Frames.encode(codec, msg);
+			frameOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+
+		private void flushStream() throws IOException {
+			if (frameOut == null)
+				out.flush();
+			else
+				frameOut.flush();
+		}
+
+		private Object streamLock() {
+			return frameOut == null ? out : frameOut;
+		}
+
+		/*
+		 * Writes whatever the writer thread has not gotten to yet, in order,
+		 * before disconnecting: the batch it holds, then the queue. The writer
+		 * is stopped first, so nothing overtakes its batch.
+		 */
+		private void writeQueued() throws IOException {
+			if (outbox == null)
+				return;
+
+			writing.stop(writer);
+			List<Serializable> queued = new ArrayList<>(writing.batch);
+			writing.batch.clear();
+			synchronized (streamLock()) {
+				outbox.drainTo(queued);
+				for (Serializable msg : queued)
+					writeBuffered(msg);
+				flushStream();
+				unflushed.addAndGet(-queued.size());
+			}
+			for (Serializable msg : queued)
+				fireSent(msg);
+		}
+
 		private void startReading() {
-			Thread read = new Thread(new Reading(), "Message reading thread");
-			read.setDaemon(true);
-			read.start();
+			Threads.start(virtualThreads, new Reading(), "Message reading thread");
+
+			if (datagramChannel != null) {
+				Threads.start(virtualThreads, new DatagramReading(), "Datagram reading thread");
+				registerDatagrams();
+			}
+
+			if (writeBatchSize > 1 || writeLingerNanos > 0) {
+				outbox = new ArrayBlockingQueue<>(sendQueueCapacity);
+				writing = new Writing();
+				writer = Threads.start(virtualThreads, writing, "Message writing thread");
+			}
 		}
 
 		/**
@@ -607,8 +1387,20 @@ public class Client {
 			public void run() {
 				while (running()) {
 					try {
-						Object msg = in.readObject();
+						Object msg = read();
+						if (msg == ServerCommand.PING) {
+							// answered right away, however busy the handling threads are
+							write(ClientCommand.PONG);
+							// in case the first datagram was lost, or a NAT forgot it
+							if (datagramChannel != null)
+								registerDatagrams();
+							continue;
+						}
 						messages.put(msg);
+						// nothing follows; the handling thread shuts down once
+						// it got to it, not to lose the messages before
+						if (msg == ServerCommand.DISCONNECTED)
+							return;
 					} catch (InterruptedException e) {
 					} catch (IOException e) {
 						shutDown();
@@ -640,22 +1432,192 @@ public class Client {
 					shutDown();
 					return false;
 				}
-				out.writeObject(msg);
-				force(out);
 
-				if (msg instanceof Command)
-					for (ClientListener cl : listeners)
-						cl.commandSent(Client.this, (Command) msg);
-				else
-					for (ClientListener cl : listeners)
-						cl.messageSent(Client.this, msg);
+				if (outbox != null) {
+					unflushed.incrementAndGet();
+					try {
+						outbox.put(msg);
+					} catch (InterruptedException e) {
+						unflushed.decrementAndGet();
+						throw e;
+					}
+					return true;
+				}
+
+				write(msg);
+				fireSent(msg);
+				return true;
+			} catch (IOException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		/**
+		 * Sends given serializable object to the server over the unreliable
+		 * side channel. See {@linkplain Client#sendUnreliable}.
+		 * 
+		 * @param msg
+		 *            The message to be sent, may be a command too.
+		 * @return If the datagram has been sent.
+		 */
+		protected boolean sendUnreliable(Serializable msg) {
+			if (msg == null)
+				return false;
+			if (socket instanceof LocalSocket)
+				return send(msg);
+			if (datagramChannel == null)
+				return false;
+
+			msg = sendInit(msg);
+			if (msg == null)
+				return false;
 
+			try {
+				sendDatagram(msg);
+				fireSent(msg);
 				return true;
 			} catch (IOException e) {
 				return false;
 			}
 		}
 
+		private void fireSent(Serializable msg) {
+			if (msg instanceof Command)
+				for (ClientListener cl : listeners.get())
+					cl.commandSent(Client.this, (Command) msg);
+			else
+				for (ClientListener cl : listeners.get())
+					cl.messageSent(Client.this, msg);
+		}
+
+		/*
+		 * Receives the datagrams of the side channel.
+		 */
+		private class DatagramReading implements Runnable {
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocate(Datagrams.MAX_LENGTH);
+				while (running()) {
+					try {
+						buffer.clear();
+						datagramChannel.read(buffer);
+						buffer.flip();
+						if (!Datagrams.verify(datagramReceiveMac, Datagrams.TO_CLIENT, buffer)
+								|| buffer.getInt() != getClientId())
+							continue;
+						long seq = buffer.getLong();
+						if (!Datagrams.inWindow(seq, lastDatagramSeq))
+							continue; // late, or twice
+						lastDatagramSeq = seq;
+
+						Object msg = Datagrams.decode(Client.this.codec, buffer);
+						if (msg != null)
+							messages.offer(msg);
+					} catch (ClosedChannelException e) {
+						break;
+					} catch (IOException | ClassNotFoundException e) {
+						// a corrupt datagram is dropped like a lost one, so is an ICMP error
+					} catch (Throwable t) {
+						t.printStackTrace();
+					}
+				}
+			}
+		}
+
+		/*
+		 * Writes the queued sends in batches, when writes are coalesced.
+		 */
+		private class Writing implements Runnable {
+
+			private final List<Serializable> batch = new ArrayList<>();
+
+			/*
+			 * Guarded by this. The writer is only interrupted while waiting for
+			 * sends, never while writing. Once stopped, the batch and queue are
+			 * left to writeQueued().
+			 */
+			private boolean waiting;
+			private boolean stopping;
+
+			public void run() {
+				try {
+					while (true) {
+						synchronized (this) {
+							if (stopping || !running())
+								break;
+							waiting = true;
+						}
+
+						batch.add(outbox.take());
+						outbox.drainTo(batch, writeBatchSize - batch.size());
+
+						if (writeLingerNanos > 0) {
+							long deadline = System.nanoTime() + writeLingerNanos;
+							while (batch.size() < writeBatchSize) {
+								Serializable msg = outbox.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+								if (msg == null)
+									break;
+								batch.add(msg);
+								outbox.drainTo(batch, writeBatchSize - batch.size());
+							}
+						}
+
+						synchronized (this) {
+							waiting = false;
+							// stopped right after taking the batch
+							if (Thread.interrupted())
+								break;
+						}
+
+						synchronized (streamLock()) {
+							for (Serializable msg : batch)
+								writeBuffered(msg);
+							flushStream();
+							unflushed.addAndGet(-batch.size());
+						}
+						for (Serializable msg : batch)
+							fireSent(msg);
+						batch.clear();
+					}
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+					batch.clear();
+					shutDown();
+				} catch (Throwable t) {
+					t.printStackTrace();
+					batch.clear();
+					shutDown();
+				}
+			}
+
+			/*
+			 * Stops the writer and waits for it to quit, unless called by the
+			 * writer itself.
+			 */
+			void stop(Thread thread) {
+				synchronized (this) {
+					stopping = true;
+					if (waiting)
+						thread.interrupt();
+				}
+				if (Thread.currentThread() == thread)
+					return;
+
+				boolean interrupted = false;
+				while (thread.isAlive()) {
+					try {
+						thread.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
 		/**
 		 * A subclass may work with an object asked to send, here (e.g. encode).
 		 * Only the returned object will be sent. Returning {@code null} will
@@ -2,5 +2,5 @@ package javax.server;
 
 public enum ClientCommand implements Command {
 
-	HANDSHAKE, DISCONNECT
+	HANDSHAKE, DISCONNECT, PONG
 }
@@ -0,0 +1,17 @@
+package javax.server;
+
+/**
+ * Handles received messages of a single type, registered with
+ * {@linkplain Client#on(Class, ClientHandler)}.
+ * 
+ * @author Mordechai Meisels
+ *
+ * @param <T>
+ *            The type of messages handled.
+ */
+@FunctionalInterface
+public interface ClientHandler<T> {
+
+	public void handle(Client client, T msg);
+
+}
@@ -0,0 +1,419 @@
+package javax.server;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed amount of {@linkplain Client} connections to the same server, so a
+ * single slow or large message doesn't hold up everything sent after it.
+ * 
+ * <p>
+ * The pool maintains its size: a client that fails to connect, or
+ * disconnects later, is replaced by a new one from {@code createClient()},
+ * retried every reconnect interval (see {@code setReconnectInterval()}).
+ * {@code getRunningCount()} tells how many are connected right now.
+ * 
+ * <p>
+ * Plain {@code send()} and {@code request()} go through the connection with
+ * the least outstanding work: sends queued or still being written, and
+ * requests waiting for their reply. Sends are only queued when the clients
+ * coalesce writes (see {@linkplain Client#setWriteBatchSize}); otherwise a
+ * send is outstanding just while it blocks writing, and with a single sending
+ * thread the choice falls back to round robin. Messages sent this way may
+ * arrive in any order.
+ * 
+ * <p>
+ * Where order matters, messages can be sent on a logical channel, identified
+ * by any int. A channel is pinned to one connection, chosen by hashing the
+ * channel id, so its messages arrive in the order sent. Channels are not
+ * interleaved over a socket: channels pinned to different connections don't
+ * wait for each other, but channels sharing a connection do, like messages
+ * on a single {@code Client}. The server sees every connection as a separate
+ * client.
+ * 
+ * @author Mordechai Meisels
+ * 
+ */
+public class ClientPool {
+
+	private final String serverAddress;
+	private final int port;
+
+	/*
+	 * The current client of each slot; a dead one is replaced in place, so
+	 * channels keep their slot.
+	 */
+	private final AtomicReferenceArray<Client> clients;
+
+	/*
+	 * Registered with every client, including replacements.
+	 */
+	private final Listeners<ClientListener> listeners;
+
+	/*
+	 * In flight sends and requests, per client index.
+	 */
+	private final AtomicIntegerArray outstanding;
+
+	/*
+	 * Where to start looking for the least loaded client, so ties are spread.
+	 */
+	private final AtomicInteger next;
+
+	private volatile boolean started = false;
+	private volatile boolean closed = false;
+	private volatile long reconnectIntervalNanos;
+
+	private Thread maintainer;
+
+	/**
+	 * Constructs a pool of {@code size} clients, connecting to the server at
+	 * the specified address and port. The clients are created with
+	 * {@code createClient()}, and connect when {@code start()} is invoked.
+	 * 
+	 * @param serverAddress
+	 *            The Internet address of the server to connect to.
+	 * @param port
+	 *            The port to connect to.
+	 * @param size
+	 *            The amount of connections, at least 1.
+	 */
+	public ClientPool(String serverAddress, int port, int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Pool size must be positive: " + size);
+
+		this.serverAddress = serverAddress;
+		this.port = port;
+		listeners = new Listeners<>(new ClientListener[0]);
+		clients = new AtomicReferenceArray<>(size);
+		for (int i = 0; i < size; i++)
+			clients.set(i, createClient(serverAddress, port));
+		outstanding = new AtomicIntegerArray(size);
+		next = new AtomicInteger();
+		reconnectIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * Creates a single connection of this pool. A subclass may return a
+	 * subclass of {@code Client}, or configure it (e.g. set a codec) before it
+	 * is started.
+	 * 
+	 * <p>
+	 * This is called from the constructor, and again for every replacement of
+	 * a client that failed or disconnected.
+	 * 
+	 * @param serverAddress
+	 *            The Internet address of the server to connect to.
+	 * @param port
+	 *            The port to connect to.
+	 * @return A new, not started, client.
+	 */
+	protected Client createClient(String serverAddress, int port) {
+		return new Client(serverAddress, port);
+	}
+
+	/**
+	 * Connects all clients of this pool, and starts replacing those that
+	 * fail or disconnect. May only be invoked once.
+	 * 
+	 * @return If every client has successfully connected. Clients that
+	 *         failed are skipped, and retried every reconnect interval.
+	 */
+	public boolean start() {
+		synchronized (this) {
+			if (started || closed)
+				return false;
+			started = true;
+		}
+
+		boolean all = true;
+		for (int i = 0; i < clients.length(); i++)
+			all &= clients.get(i).start();
+
+		synchronized (this) {
+			if (!closed && reconnectIntervalNanos > 0)
+				maintainer = Threads.start(false, new Maintaining(), "Client pool maintaining thread");
+		}
+		return all;
+	}
+
+	/**
+	 * Shuts down all clients of this pool. They are no longer replaced.
+	 */
+	public void shutDown() {
+		synchronized (this) {
+			closed = true;
+			if (maintainer != null)
+				maintainer.interrupt();
+		}
+		for (int i = 0; i < clients.length(); i++)
+			clients.get(i).shutDown();
+	}
+
+	/**
+	 * Sets how often clients that failed to connect, or disconnected, are
+	 * replaced. A replacement that fails to connect is retried after another
+	 * interval. 0 disables replacing, leaving the pool with fewer connections
+	 * as clients go away. The default is 1 second.
+	 * 
+	 * <p>
+	 * This method must be called before the pool is started.
+	 * 
+	 * @param millis
+	 *            The interval in milliseconds, 0 to never replace clients.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the pool has already been started.
+	 */
+	public void setReconnectInterval(long millis) {
+		if (started)
+			throw new IllegalStateException("Pool already started.");
+		reconnectIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Returns how often clients that failed or disconnected are replaced.
+	 * 
+	 * @return The interval in milliseconds, 0 if clients are never replaced.
+	 */
+	public long getReconnectInterval() {
+		return TimeUnit.NANOSECONDS.toMillis(reconnectIntervalNanos);
+	}
+
+	/**
+	 * Returns the current clients of this pool. A client that failed or
+	 * disconnected is replaced by a new instance, so the list is a snapshot.
+	 * 
+	 * @return An unmodifiable list of the clients.
+	 */
+	public List<Client> getClients() {
+		List<Client> list = new ArrayList<>(clients.length());
+		for (int i = 0; i < clients.length(); i++)
+			list.add(clients.get(i));
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Returns the amount of connections in this pool, whether running or not.
+	 * 
+	 * @return The pool size.
+	 */
+	public int size() {
+		return clients.length();
+	}
+
+	/**
+	 * Returns the amount of clients currently connected. Less than
+	 * {@code size()} while failed clients wait to be replaced.
+	 * 
+	 * @return The amount of running clients.
+	 */
+	public int getRunningCount() {
+		int count = 0;
+		for (int i = 0; i < clients.length(); i++)
+			if (clients.get(i).running())
+				count++;
+		return count;
+	}
+
+	/**
+	 * Registers a {@code ClientListener} with every client of this pool,
+	 * including future replacements.
+	 * 
+	 * @param cl
+	 *            The {@code ClientListener} to register.
+	 */
+	public synchronized void addClientListener(ClientListener cl) {
+		listeners.add(cl);
+		for (int i = 0; i < clients.length(); i++)
+			clients.get(i).addClientListener(cl);
+	}
+
+	/**
+	 * Unregisters a {@code ClientListener} from every client of this pool.
+	 * 
+	 * @param cl
+	 *            The {@code ClientListener} to remove.
+	 */
+	public synchronized void removeClientListener(ClientListener cl) {
+		listeners.remove(cl);
+		for (int i = 0; i < clients.length(); i++)
+			clients.get(i).removeClientListener(cl);
+	}
+
+	/**
+	 * Sends a message through the least loaded connection.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return If the message has been sent successfully.
+	 */
+	public boolean send(Serializable msg) {
+		return sendThrough(leastOutstanding(), msg);
+	}
+
+	/**
+	 * Sends a message on a logical channel. All messages of a channel use the
+	 * same connection, and arrive in the order sent.
+	 * 
+	 * @param channel
+	 *            The channel id.
+	 * @param msg
+	 *            The message to be sent.
+	 * @return If the message has been sent successfully.
+	 */
+	public boolean send(int channel, Serializable msg) {
+		return sendThrough(pinned(channel), msg);
+	}
+
+	/**
+	 * Sends a request through the least loaded connection. See
+	 * {@linkplain Client#request(Serializable, Duration)}.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @param timeout
+	 *            How long to wait for the reply, {@code null} to wait
+	 *            indefinitely.
+	 * @return A future completing with the reply.
+	 */
+	public CompletableFuture<Object> request(Serializable msg, Duration timeout) {
+		return requestThrough(leastOutstanding(), msg, timeout);
+	}
+
+	/**
+	 * Sends a request on a logical channel. See
+	 * {@linkplain Client#request(Serializable, Duration)}.
+	 * 
+	 * @param channel
+	 *            The channel id.
+	 * @param msg
+	 *            The message to be sent.
+	 * @param timeout
+	 *            How long to wait for the reply, {@code null} to wait
+	 *            indefinitely.
+	 * @return A future completing with the reply.
+	 */
+	public CompletableFuture<Object> request(int channel, Serializable msg, Duration timeout) {
+		return requestThrough(pinned(channel), msg, timeout);
+	}
+
+	/**
+	 * Returns the connection a logical channel is pinned to. If that client is
+	 * no longer running, the channel moves to the next running one until it
+	 * has been replaced.
+	 * 
+	 * @param channel
+	 *            The channel id.
+	 * @return The client carrying the channel.
+	 */
+	public Client getClient(int channel) {
+		int index = pinned(channel);
+		return index < 0 ? null : clients.get(index);
+	}
+
+	private boolean sendThrough(int index, Serializable msg) {
+		if (index < 0)
+			return false;
+
+		outstanding.incrementAndGet(index);
+		try {
+			return clients.get(index).send(msg);
+		} finally {
+			outstanding.decrementAndGet(index);
+		}
+	}
+
+	private CompletableFuture<Object> requestThrough(int index, Serializable msg, Duration timeout) {
+		if (index < 0) {
+			CompletableFuture<Object> future = new CompletableFuture<>();
+			future.completeExceptionally(new IOException("No running connection."));
+			return future;
+		}
+
+		outstanding.incrementAndGet(index);
+		CompletableFuture<Object> future = clients.get(index).request(msg, timeout);
+		future.whenComplete((r, t) -> outstanding.decrementAndGet(index));
+		return future;
+	}
+
+	/*
+	 * The running client with the least in flight work, -1 if none is running.
+	 */
+	private int leastOutstanding() {
+		int size = clients.length();
+		int start = Math.floorMod(next.getAndIncrement(), size);
+		int best = -1;
+		int min = Integer.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % size;
+			Client c = clients.get(index);
+			if (!c.running())
+				continue;
+
+			int load = outstanding.get(index) + c.getQueuedSendCount();
+			if (load < min) {
+				best = index;
+				min = load;
+				if (load == 0)
+					break;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * The running client of a channel, spread the same way as Server inboxes.
+	 */
+	private int pinned(int channel) {
+		int size = clients.length();
+		int start = Server.spread(channel, size);
+		for (int i = 0; i < size; i++) {
+			int index = (start + i) % size;
+			if (clients.get(index).running())
+				return index;
+		}
+		return -1;
+	}
+
+	/*
+	 * Replaces every client that is not running, once per reconnect interval.
+	 */
+	private class Maintaining implements Runnable {
+		public void run() {
+			try {
+				while (!closed) {
+					TimeUnit.NANOSECONDS.sleep(reconnectIntervalNanos);
+					for (int i = 0; i < clients.length() && !closed; i++)
+						if (!clients.get(i).running())
+							replace(i);
+				}
+			} catch (InterruptedException e) {
+			}
+		}
+
+		private void replace(int index) {
+			Client c = createClient(serverAddress, port);
+			synchronized (ClientPool.this) {
+				if (closed)
+					return;
+				for (ClientListener cl : listeners.get())
+					c.addClientListener(cl);
+				clients.get(index).shutDown();
+				clients.set(index, c);
+			}
+			// a failure is retried next time
+			if (c.start() && closed)
+				c.shutDown();
+		}
+	}
+}
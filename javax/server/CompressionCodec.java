@@ -0,0 +1,188 @@
+package javax.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@code MessageCodec} that compresses the payloads written by another
+ * codec with Deflate, once they reach a size threshold. Every payload starts
+ * with a flag byte, so small messages are sent as they are and cost a single
+ * byte more.
+ * 
+ * <p>
+ * Optional preset dictionaries, holding byte sequences common in the
+ * messages, improve the compression of small and medium payloads a lot. The
+ * first dictionary is used for compressing; any of them is accepted when
+ * decompressing (Deflate identifies the dictionary by its Adler-32 checksum),
+ * so dictionaries can be rotated. Both sides must know every dictionary in
+ * use.
+ * 
+ * <p>
+ * Normally there is no need to use this class directly: setting
+ * {@linkplain Server#setCompressionThreshold} makes the server wrap its codec,
+ * and tells every client to do the same during the handshake.
+ * 
+ * @author Mordechai Meisels
+ * 
+ */
+public class CompressionCodec implements MessageCodec {
+
+	private static final int RAW = 0;
+	private static final int DEFLATED = 1;
+
+	private final MessageCodec delegate;
+	private final int threshold;
+	private final byte[][] dictionaries;
+	private final long[] checksums;
+
+	/*
+	 * Deflaters and inflaters hold native memory and are expensive to create,
+	 * so they are reused; neither is thread safe, each is used by a single
+	 * thread at a time.
+	 */
+	private final Queue<Deflater> deflaters;
+	private final Queue<Inflater> inflaters;
+
+	/**
+	 * Constructs a codec compressing the payloads of the given codec.
+	 * 
+	 * @param delegate
+	 *            The codec writing the actual payloads.
+	 * @param threshold
+	 *            The payload size, in bytes, from which payloads are
+	 *            compressed.
+	 * @param dictionaries
+	 *            Preset dictionaries, the first one is used for compressing.
+	 */
+	public CompressionCodec(MessageCodec delegate, int threshold, byte[]... dictionaries) {
+		if (delegate == null)
+			throw new NullPointerException("delegate");
+
+		this.delegate = delegate;
+		this.threshold = Math.max(0, threshold);
+		this.dictionaries = dictionaries == null ? new byte[0][] : dictionaries.clone();
+		checksums = new long[this.dictionaries.length];
+		for (int i = 0; i < checksums.length; i++) {
+			Adler32 adler = new Adler32();
+			adler.update(this.dictionaries[i]);
+			checksums[i] = adler.getValue();
+		}
+		deflaters = new ConcurrentLinkedQueue<>();
+		inflaters = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Returns the codec writing the actual payloads.
+	 * 
+	 * @return The wrapped codec.
+	 */
+	public MessageCodec getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Returns the payload size, in bytes, from which payloads are compressed.
+	 * 
+	 * @return The compression threshold.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	@Override
+	public int typeId(Object msg) {
+		return delegate.typeId(msg);
+	}
+
+	@Override
+	public void encode(Object msg, DataOutputStream out) throws IOException {
+		Frames.ExposedByteArrayOutputStream raw = new Frames.ExposedByteArrayOutputStream();
+		DataOutputStream rawOut = new DataOutputStream(raw);
+		delegate.encode(msg, rawOut);
+		rawOut.flush();
+
+		if (raw.size() < threshold) {
+			out.writeByte(RAW);
+			out.write(raw.buffer(), 0, raw.size());
+			return;
+		}
+
+		Deflater deflater = deflaters.poll();
+		if (deflater == null)
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			if (dictionaries.length > 0)
+				deflater.setDictionary(dictionaries[0]);
+			deflater.setInput(raw.buffer(), 0, raw.size());
+			deflater.finish();
+
+			out.writeByte(DEFLATED);
+			out.writeInt(raw.size());
+			byte[] chunk = new byte[Math.min(raw.size() + 64, 64 * 1024)];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				out.write(chunk, 0, n);
+			}
+		} finally {
+			deflater.reset();
+			deflaters.offer(deflater);
+		}
+	}
+
+	@Override
+	public Object decode(int typeId, DataInputStream in) throws IOException, ClassNotFoundException {
+		int flag = in.readUnsignedByte();
+		if (flag == RAW)
+			return delegate.decode(typeId, in);
+		if (flag != DEFLATED)
+			throw new StreamCorruptedException("Unknown compression flag: " + flag);
+
+		int length = in.readInt();
+		Frames.checkLength(length);
+		byte[] compressed = in.readAllBytes();
+		byte[] raw = new byte[length];
+
+		Inflater inflater = inflaters.poll();
+		if (inflater == null)
+			inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int read = inflater.inflate(raw, n, length - n);
+				if (read == 0) {
+					if (inflater.needsDictionary())
+						inflater.setDictionary(dictionary(inflater.getAdler()));
+					else if (inflater.needsInput())
+						break;
+				}
+				n += read;
+			}
+			if (n != length)
+				throw new StreamCorruptedException("Compressed payload length mismatch.");
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Corrupt compressed payload: " + e.getMessage());
+		} finally {
+			inflater.reset();
+			inflaters.offer(inflater);
+		}
+
+		return delegate.decode(typeId, new DataInputStream(new ByteArrayInputStream(raw)));
+	}
+
+	private byte[] dictionary(int adler) throws StreamCorruptedException {
+		for (int i = 0; i < checksums.length; i++)
+			if (checksums[i] == (adler & 0xFFFFFFFFL))
+				return dictionaries[i];
+		throw new StreamCorruptedException("Unknown compression dictionary: " + Integer.toHexString(adler));
+	}
+}
@@ -0,0 +1,146 @@
+package javax.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * The unreliable side channel, see Server.setDatagramPort(). Every datagram
+ * starts with a header: the client id, which tells the connection it belongs
+ * to, and a sequence number, counted per connection and direction. The header
+ * is followed by a single message, encoded as a frame (a datagram without one
+ * just tells the server where the client is), and a tag.
+ *
+ * The tag is an HMAC of the direction, header and frame, under a key the
+ * client was given over its connection during the handshake; it never shows
+ * in a datagram, so seeing datagrams doesn't help forging them. The direction
+ * keeps a datagram from being reflected back to its sender.
+ *
+ * Datagrams may be lost, duplicated or reordered. The receiver only takes a
+ * datagram whose sequence number is higher than any seen before, so a late
+ * one is dropped rather than overwriting a newer state; but no further ahead
+ * than MAX_SEQUENCE_GAP.
+ */
+final class Datagrams {
+
+	static final int HEADER_LENGTH = 12;
+	static final int KEY_LENGTH = 32;
+	static final int TAG_LENGTH = 16;
+
+	/*
+	 * The largest UDP payload over IPv4.
+	 */
+	static final int MAX_LENGTH = 65507;
+
+	/*
+	 * How many datagrams may be lost in a row, over 4 hours at 60 a second.
+	 */
+	static final long MAX_SEQUENCE_GAP = 1 << 20;
+
+	static final byte TO_SERVER = 0;
+	static final byte TO_CLIENT = 1;
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final SecureRandom random = new SecureRandom();
+
+	private Datagrams() {
+	}
+
+	static byte[] newKey() {
+		byte[] key = new byte[KEY_LENGTH];
+		random.nextBytes(key);
+		return key;
+	}
+
+	/*
+	 * A Mac is not thread safe; encode() locks it, while each receiving
+	 * thread should have its own.
+	 */
+	static Mac mac(byte[] key) throws IOException {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Can't authenticate datagrams.", e);
+		}
+	}
+
+	/*
+	 * Encodes a complete datagram, msg may be null. The returned buffer is
+	 * flipped.
+	 */
+	static ByteBuffer encode(MessageCodec codec, Mac mac, byte direction, int id, long seq, Object msg)
+			throws IOException {
+		ByteBuffer frame = msg == null ? null : Frames.encode(codec, msg);
+		int length = HEADER_LENGTH + (frame == null ? 0 : frame.remaining()) + TAG_LENGTH;
+		if (length > MAX_LENGTH)
+			throw new IllegalArgumentException("Message too large for a datagram: " + length + " bytes.");
+
+		ByteBuffer datagram = ByteBuffer.allocate(length);
+		datagram.putInt(id).putLong(seq);
+		if (frame != null)
+			datagram.put(frame);
+
+		byte[] tag;
+		synchronized (mac) {
+			mac.update(direction);
+			mac.update(datagram.array(), 0, datagram.position());
+			tag = mac.doFinal();
+		}
+		datagram.put(tag, 0, TAG_LENGTH);
+		return datagram.flip();
+	}
+
+	/*
+	 * Checks the tag of a received, flipped datagram. If it is authentic, the
+	 * tag is cut off, leaving the header and frame.
+	 */
+	static boolean verify(Mac mac, byte direction, ByteBuffer datagram) {
+		int length = datagram.remaining() - TAG_LENGTH;
+		if (length < HEADER_LENGTH)
+			return false;
+
+		mac.update(direction);
+		mac.update(datagram.array(), datagram.arrayOffset() + datagram.position(), length);
+		byte[] expected = mac.doFinal();
+
+		byte[] tag = new byte[TAG_LENGTH];
+		datagram.get(datagram.position() + length, tag);
+		// constant time, not to tell how much of a forged tag is right
+		if (!MessageDigest.isEqual(tag, Arrays.copyOf(expected, TAG_LENGTH)))
+			return false;
+
+		datagram.limit(datagram.position() + length);
+		return true;
+	}
+
+	/*
+	 * Whether a datagram with the given sequence number may be taken, after
+	 * the last one taken.
+	 */
+	static boolean inWindow(long seq, long last) {
+		return seq > last && seq - last <= MAX_SEQUENCE_GAP;
+	}
+
+	/*
+	 * Decodes the message following the header, which must have been read
+	 * already. Returns null if there is none.
+	 */
+	static Object decode(MessageCodec codec, ByteBuffer datagram) throws IOException, ClassNotFoundException {
+		if (!datagram.hasRemaining())
+			return null;
+		if (datagram.remaining() < 4 || datagram.getInt() != datagram.remaining())
+			throw new StreamCorruptedException("Invalid datagram frame.");
+
+		return Frames.decode(codec, datagram.array(), datagram.arrayOffset() + datagram.position(),
+				datagram.remaining());
+	}
+}
@@ -0,0 +1,190 @@
+package javax.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Length prefixed framing, used whenever a connection does not use the
+ * continuous Object streams (e.g. when it is driven by a selector, or a
+ * MessageCodec has been set). Every frame is an int holding the body length,
+ * followed by the body: an int type id and the payload written by the codec.
+ */
+final class Frames {
+
+	/*
+	 * Frames larger than this are considered corrupt, and fail the connection.
+	 */
+	static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	/*
+	 * Used when frames are required, but no codec has been set.
+	 */
+	static final MessageCodec DEFAULT_CODEC = new SerializationCodec();
+
+	/*
+	 * Reserved type ids of the built in commands, their payload is the ordinal.
+	 * Requests and responses hold the correlation id, followed by the type id
+	 * and payload of the enveloped message, so codecs never see envelopes.
+	 */
+	private static final int SERVER_COMMAND = -1;
+	private static final int CLIENT_COMMAND = -2;
+	private static final int REQUEST = -3;
+	private static final int RESPONSE = -4;
+
+	private static final ServerCommand[] SERVER_COMMANDS = ServerCommand.values();
+	private static final ClientCommand[] CLIENT_COMMANDS = ClientCommand.values();
+
+	private Frames() {
+	}
+
+	/*
+	 * Encodes the given object into a complete frame (header included), ready
+	 * to be written. The returned buffer is flipped.
+	 */
+	static ByteBuffer encode(MessageCodec codec, Object msg) throws IOException {
+		ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0); // room for the length header
+		writeBody(codec, msg, out);
+		out.flush();
+
+		ByteBuffer frame = ByteBuffer.wrap(bytes.buffer(), 0, bytes.size());
+		frame.putInt(0, bytes.size() - 4);
+		return frame;
+	}
+
+	/*
+	 * Decodes a frame body, previously encoded with encode().
+	 */
+	static Object decode(MessageCodec codec, byte[] body, int offset, int length)
+			throws IOException, ClassNotFoundException {
+		if (length < 4)
+			throw new StreamCorruptedException("Frame too short: " + length);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, offset, length));
+		return readBody(codec, in);
+	}
+
+	private static void writeBody(MessageCodec codec, Object msg, DataOutputStream out) throws IOException {
+		if (msg instanceof Request) {
+			out.writeInt(REQUEST);
+			out.writeLong(((Request) msg).getId());
+			writeMessage(codec, ((Request) msg).getPayload(), out);
+		} else if (msg instanceof Response) {
+			out.writeInt(RESPONSE);
+			out.writeLong(((Response) msg).getId());
+			writeMessage(codec, ((Response) msg).getPayload(), out);
+		} else {
+			writeMessage(codec, msg, out);
+		}
+	}
+
+	private static void writeMessage(MessageCodec codec, Object msg, DataOutputStream out) throws IOException {
+		if (msg instanceof ServerCommand) {
+			out.writeInt(SERVER_COMMAND);
+			out.writeByte(((ServerCommand) msg).ordinal());
+		} else if (msg instanceof ClientCommand) {
+			out.writeInt(CLIENT_COMMAND);
+			out.writeByte(((ClientCommand) msg).ordinal());
+		} else if (msg instanceof Request || msg instanceof Response) {
+			throw new IllegalArgumentException("Requests and responses can't be enveloped.");
+		} else {
+			int typeId = codec.typeId(msg);
+			if (typeId < 0)
+				throw new IllegalArgumentException("Negative type id " + typeId + " is reserved.");
+			out.writeInt(typeId);
+			codec.encode(msg, out);
+		}
+	}
+
+	private static Object readBody(MessageCodec codec, DataInputStream in) throws IOException, ClassNotFoundException {
+		int typeId = in.readInt();
+		if (typeId == REQUEST)
+			return new Request(in.readLong(), payload(readMessage(codec, in.readInt(), in)));
+		if (typeId == RESPONSE)
+			return new Response(in.readLong(), payload(readMessage(codec, in.readInt(), in)));
+		return readMessage(codec, typeId, in);
+	}
+
+	/*
+	 * Reads anything but an envelope. Envelopes are never nested, so a frame
+	 * can't make decoding recurse, however deep it claims to go.
+	 */
+	private static Object readMessage(MessageCodec codec, int typeId, DataInputStream in)
+			throws IOException, ClassNotFoundException {
+		try {
+			if (typeId == SERVER_COMMAND)
+				return SERVER_COMMANDS[in.readUnsignedByte()];
+			if (typeId == CLIENT_COMMAND)
+				return CLIENT_COMMANDS[in.readUnsignedByte()];
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new StreamCorruptedException("Unknown command in frame.");
+		}
+		if (typeId == REQUEST || typeId == RESPONSE)
+			throw new StreamCorruptedException("Nested envelope in frame.");
+
+		Object msg = codec.decode(typeId, in);
+		if (msg == null)
+			throw new StreamCorruptedException("Codec decoded null, type id " + typeId);
+		return msg;
+	}
+
+	private static Serializable payload(Object msg) throws StreamCorruptedException {
+		if (!(msg instanceof Serializable))
+			throw new StreamCorruptedException("Enveloped message is not Serializable: " + msg.getClass());
+		return (Serializable) msg;
+	}
+
+	/*
+	 * Writes a frame to a blocking stream.
+	 */
+	static void write(OutputStream out, ByteBuffer frame) throws IOException {
+		out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		out.flush();
+	}
+
+	/*
+	 * Blocks until a whole frame has been read from the stream, and returns the
+	 * decoded object.
+	 */
+	static Object read(MessageCodec codec, DataInputStream in) throws IOException, ClassNotFoundException {
+		int length = in.readInt();
+		checkLength(length);
+
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decode(codec, body, 0, length);
+	}
+
+	/*
+	 * The peer may have reset its Object stream after the handshake, which
+	 * leaves markers before the first frame. The stream must support mark().
+	 */
+	static void skipResets(InputStream in) throws IOException {
+		while (true) {
+			in.mark(1);
+			if (in.read() != ObjectStreamConstants.TC_RESET) {
+				in.reset();
+				return;
+			}
+		}
+	}
+
+	static void checkLength(int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+	}
+
+	/*
+	 * Avoids copying the encoded bytes once more, in toByteArray().
+	 */
+	static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+		ExposedByteArrayOutputStream() {
+			super(256);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package javax.server;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A concurrent map of primitive int keys, used for the clients of a server.
+ * Open addressing with linear probing, so lookups neither box the key nor
+ * lock. Writes (connects and disconnects) are rare, and synchronize on the
+ * map.
+ *
+ * A slot's key is written before its value, and never changes for the
+ * lifetime of a table, so a reader that sees a value also sees the right key.
+ * Removed entries leave a tombstone behind, which is only reclaimed when the
+ * table is rebuilt. Rebuilding publishes a fresh table; readers still on the
+ * old one see the map as it was just before.
+ *
+ * Iteration is weakly consistent, like in the java.util.concurrent maps: it
+ * never throws ConcurrentModificationException, and may or may not reflect
+ * changes made after it was created.
+ */
+final class IntMap<V> {
+
+	private static final Object TOMBSTONE = new Object();
+	private static final int MIN_CAPACITY = 16;
+
+	private static final class Table {
+		final AtomicIntegerArray keys;
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+		final int shift;
+
+		Table(int capacity) {
+			keys = new AtomicIntegerArray(capacity);
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+			shift = 32 - Integer.numberOfTrailingZeros(capacity);
+		}
+
+		int slot(int key) {
+			// Fibonacci hashing, sequential ids spread over the whole table
+			return (key * 0x9E3779B9) >>> shift;
+		}
+	}
+
+	private volatile Table table;
+	private volatile int size;
+
+	/*
+	 * Live entries plus tombstones, only accessed by writers.
+	 */
+	private int used;
+
+	IntMap() {
+		table = new Table(MIN_CAPACITY);
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		Table t = table;
+		for (int i = t.slot(key);; i = (i + 1) & t.mask) {
+			Object v = t.values.get(i);
+			if (v == null)
+				return null;
+			if (v != TOMBSTONE && t.keys.get(i) == key)
+				return (V) v;
+		}
+	}
+
+	boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	synchronized V put(int key, V value) {
+		return insert(key, value, false);
+	}
+
+	synchronized V putIfAbsent(int key, V value) {
+		return insert(key, value, true);
+	}
+
+	synchronized V remove(int key) {
+		return delete(key, null);
+	}
+
+	synchronized boolean remove(int key, V value) {
+		return value != null && delete(key, value) != null;
+	}
+
+	/*
+	 * A live view of the values.
+	 */
+	Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private V insert(int key, V value, boolean onlyIfAbsent) {
+		if (value == null)
+			throw new NullPointerException();
+
+		Table t = table;
+		for (int i = t.slot(key);; i = (i + 1) & t.mask) {
+			Object v = t.values.get(i);
+			if (v == null)
+				break;
+			if (v != TOMBSTONE && t.keys.get(i) == key) {
+				if (!onlyIfAbsent)
+					t.values.set(i, value);
+				return (V) v;
+			}
+		}
+
+		// not present; keep at least half of the slots empty
+		if ((used + 1) * 2 > t.mask + 1) {
+			rebuild();
+			t = table;
+		}
+
+		int i = t.slot(key);
+		while (t.values.get(i) != null)
+			i = (i + 1) & t.mask;
+		t.keys.set(i, key);
+		t.values.set(i, value); // publishes the key too
+		used++;
+		size++;
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V delete(int key, V expected) {
+		Table t = table;
+		for (int i = t.slot(key);; i = (i + 1) & t.mask) {
+			Object v = t.values.get(i);
+			if (v == null)
+				return null;
+			if (v != TOMBSTONE && t.keys.get(i) == key) {
+				if (expected != null && v != expected)
+					return null;
+				t.values.set(i, TOMBSTONE);
+				size--;
+				return (V) v;
+			}
+		}
+	}
+
+	/*
+	 * Copies the live entries to a new table, dropping the tombstones. Grows
+	 * if the live entries alone fill a quarter of the table.
+	 */
+	private void rebuild() {
+		Table old = table;
+		int capacity = Math.max(MIN_CAPACITY, old.mask + 1);
+		while ((size + 1) * 4 > capacity)
+			capacity <<= 1;
+
+		Table t = new Table(capacity);
+		for (int j = 0; j <= old.mask; j++) {
+			Object v = old.values.get(j);
+			if (v == null || v == TOMBSTONE)
+				continue;
+
+			int key = old.keys.get(j);
+			int i = t.slot(key);
+			while (t.values.get(i) != null)
+				i = (i + 1) & t.mask;
+			t.keys.set(i, key);
+			t.values.set(i, v);
+		}
+
+		used = size;
+		table = t;
+	}
+
+	private class ValueIterator implements Iterator<V> {
+		private final Table t = table;
+		private int index = -1;
+		private int lastKey;
+		private V last;
+		private V next;
+
+		ValueIterator() {
+			advance();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			next = null;
+			while (++index <= t.mask) {
+				Object v = t.values.get(index);
+				if (v != null && v != TOMBSTONE) {
+					next = (V) v;
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public V next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			last = next;
+			lastKey = t.keys.get(index);
+			advance();
+			return last;
+		}
+
+		@Override
+		public void remove() {
+			if (last == null)
+				throw new IllegalStateException();
+			IntMap.this.remove(lastKey, last);
+			last = null;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package javax.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, with logarithmic buckets
+ * (much like an HDR histogram). Every power of two is split into 8 linear
+ * sub-buckets, so recorded values are kept with a relative error of at most
+ * 12.5%, using a fixed amount of memory regardless of the range.
+ * 
+ * <p>
+ * Recording may happen from any amount of threads concurrently, and never
+ * blocks. Reading while recording gives a consistent enough, but not atomic,
+ * view.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	/**
+	 * Constructs an empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * Records a single latency. Negative values are recorded as 0.
+	 * 
+	 * @param nanos
+	 *            The latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.increment();
+		sum.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Returns the amount of recorded latencies.
+	 * 
+	 * @return The amount of recorded latencies.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the mean of all recorded latencies, in nanoseconds.
+	 * 
+	 * @return The mean latency, or 0 if nothing was recorded.
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the highest recorded latency, in nanoseconds.
+	 * 
+	 * @return The highest latency, or 0 if nothing was recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the latency below or at which the given percentage of the
+	 * recorded latencies fall, in nanoseconds. The value is the upper bound of
+	 * the bucket holding that percentile, so it may overestimate by the
+	 * bucket's width.
+	 * 
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The latency at that percentile, or 0 if nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = counts.get(i);
+		if (total == 0)
+			return 0;
+
+		long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= target)
+				return Math.min(highestEquivalent(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+
+	/*
+	 * Values below SUB_BUCKETS map linearly, the rest by their highest bit
+	 * and the SUB_BUCKET_BITS below it.
+	 */
+	static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowestEquivalent(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+		int sub = index % SUB_BUCKETS;
+		return (1L << exponent) | ((long) sub << (exponent - SUB_BUCKET_BITS));
+	}
+
+	static long highestEquivalent(int index) {
+		return index + 1 < BUCKETS ? lowestEquivalent(index + 1) - 1 : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,48 @@
+package javax.server;
+
+import java.util.Arrays;
+
+/*
+ * A copy-on-write registry of listeners. Registering and unregistering copy
+ * the array, which is rare; dispatching reads the current array with a single
+ * volatile read, takes no lock and allocates no iterator. A dispatch that
+ * started before a change keeps notifying the listeners it saw.
+ */
+final class Listeners<L> {
+
+	private volatile L[] array;
+
+	Listeners(L[] empty) {
+		array = empty;
+	}
+
+	/*
+	 * The current listeners. The array must not be modified.
+	 */
+	L[] get() {
+		return array;
+	}
+
+	synchronized void add(L listener) {
+		L[] old = array;
+		L[] copy = Arrays.copyOf(old, old.length + 1);
+		copy[old.length] = listener;
+		array = copy;
+	}
+
+	/*
+	 * Removes the first registration of the listener, like List.remove().
+	 */
+	synchronized boolean remove(L listener) {
+		L[] old = array;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i].equals(listener)) {
+				L[] copy = Arrays.copyOf(old, old.length - 1);
+				System.arraycopy(old, i + 1, copy, i, old.length - i - 1);
+				array = copy;
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,329 @@
+package javax.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * One end of an in-process connection, see Server.setLocalName(). Messages
+ * are handed to the other end over a pair of SpscQueues, one per direction.
+ * There are no bytes in between, hence no socket streams either, only the
+ * Object streams of getObjectInput() and getObjectOutput(); these support
+ * objects and the primitives commonly exchanged during the handshake.
+ *
+ * Writes are serialized by the connection's stream lock, and reads happen on
+ * its single reading thread (or during the handshake, before it starts), so
+ * every queue has one producer and one consumer at a time.
+ *
+ * Messages are copied through a codec, so the receiver never shares state
+ * with the sender, just like over the network; unless the codec is null, and
+ * references are passed as they are.
+ */
+final class LocalSocket extends Socket {
+
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/*
+	 * How often a reader polls an empty queue before parking.
+	 */
+	private static final int SPINS = 100;
+
+	private final String name;
+	private final Pipe in;
+	private final Pipe out;
+	private final MessageCodec codec;
+	private final ObjectInputStream objectIn;
+	private final ObjectOutputStream objectOut;
+
+	private volatile boolean closed;
+	private volatile int timeout;
+
+	private LocalSocket(String name, Pipe in, Pipe out, MessageCodec codec) throws IOException {
+		this.name = name;
+		this.in = in;
+		this.out = out;
+		this.codec = codec;
+		objectIn = new Input();
+		objectOut = new Output();
+	}
+
+	/*
+	 * Returns both ends of a new connection, the client's first.
+	 */
+	static LocalSocket[] pair(String name, MessageCodec codec) throws IOException {
+		Pipe toServer = new Pipe();
+		Pipe toClient = new Pipe();
+		return new LocalSocket[] { new LocalSocket(name, toClient, toServer, codec),
+				new LocalSocket(name, toServer, toClient, codec) };
+	}
+
+	ObjectInputStream getObjectInput() {
+		return objectIn;
+	}
+
+	ObjectOutputStream getObjectOutput() {
+		return objectOut;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		throw new SocketException("In-process connections have no byte streams.");
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new SocketException("In-process connections have no byte streams.");
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout can't be negative");
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		in.close();
+		out.close();
+	}
+
+	@Override
+	public String toString() {
+		return "LocalSocket[" + name + "]";
+	}
+
+	private void send(Object obj) throws IOException {
+		if (closed)
+			throw new SocketException("Socket is closed");
+		out.put(obj);
+	}
+
+	private <T> T receive(Class<T> type) throws IOException {
+		if (closed)
+			throw new SocketException("Socket is closed");
+		Object obj = in.take(timeout);
+		if (!type.isInstance(obj))
+			throw new StreamCorruptedException("Expected " + type.getSimpleName() + ", got " + obj);
+		return type.cast(obj);
+	}
+
+	/*
+	 * A single direction.
+	 */
+	private static final class Pipe {
+		final SpscQueue<Object> queue = new SpscQueue<>(QUEUE_CAPACITY);
+
+		/*
+		 * The consumer waiting on an empty queue, the producer on a full one.
+		 */
+		volatile Thread consumer;
+		volatile Thread producer;
+		volatile boolean closed;
+
+		void put(Object obj) throws IOException {
+			if (closed)
+				throw new SocketException("Connection closed.");
+			if (!queue.offer(obj)) {
+				producer = Thread.currentThread();
+				try {
+					while (!queue.offer(obj)) {
+						if (closed)
+							throw new SocketException("Connection closed.");
+						LockSupport.park(this);
+						if (Thread.interrupted())
+							throw new InterruptedIOException();
+					}
+				} finally {
+					producer = null;
+				}
+			}
+			wake(consumer);
+		}
+
+		Object take(int timeout) throws IOException {
+			Object obj = queue.poll();
+			for (int i = 0; obj == null && i < SPINS; i++) {
+				Thread.onSpinWait();
+				obj = queue.poll();
+			}
+
+			if (obj == null) {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+				consumer = Thread.currentThread();
+				try {
+					while ((obj = queue.poll()) == null) {
+						if (closed) {
+							// whatever was sent before closing is still read
+							obj = queue.poll();
+							if (obj != null)
+								break;
+							throw new EOFException();
+						}
+
+						if (timeout == 0) {
+							LockSupport.park(this);
+						} else {
+							long left = deadline - System.nanoTime();
+							if (left <= 0)
+								throw new SocketTimeoutException("Read timed out");
+							LockSupport.parkNanos(this, left);
+						}
+						if (Thread.interrupted())
+							throw new InterruptedIOException();
+					}
+				} finally {
+					consumer = null;
+				}
+			}
+
+			wake(producer);
+			return obj;
+		}
+
+		void close() {
+			closed = true;
+			wake(consumer);
+			wake(producer);
+		}
+
+		private static void wake(Thread t) {
+			if (t != null)
+				LockSupport.unpark(t);
+		}
+	}
+
+	private final class Input extends ObjectInputStream {
+
+		Input() throws IOException {
+			super();
+		}
+
+		@Override
+		protected Object readObjectOverride() throws IOException, ClassNotFoundException {
+			if (codec == null)
+				return receive(Object.class);
+
+			ByteBuffer frame = receive(ByteBuffer.class);
+			return Frames.decode(codec, frame.array(), frame.arrayOffset() + 4, frame.remaining() - 4);
+		}
+
+		@Override
+		public Object readUnshared() throws IOException, ClassNotFoundException {
+			return readObject();
+		}
+
+		@Override
+		public int readInt() throws IOException {
+			return receive(Integer.class);
+		}
+
+		@Override
+		public long readLong() throws IOException {
+			return receive(Long.class);
+		}
+
+		@Override
+		public boolean readBoolean() throws IOException {
+			return receive(Boolean.class);
+		}
+
+		@Override
+		public String readUTF() throws IOException {
+			return receive(String.class);
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+			LocalSocket.this.close();
+		}
+	}
+
+	private final class Output extends ObjectOutputStream {
+
+		Output() throws IOException {
+			super();
+		}
+
+		@Override
+		protected void writeObjectOverride(Object obj) throws IOException {
+			send(codec == null ? obj : Frames.encode(codec, obj));
+		}
+
+		@Override
+		public void writeUnshared(Object obj) throws IOException {
+			writeObject(obj);
+		}
+
+		@Override
+		public void writeInt(int val) throws IOException {
+			send(val);
+		}
+
+		@Override
+		public void writeLong(long val) throws IOException {
+			send(val);
+		}
+
+		@Override
+		public void writeBoolean(boolean val) throws IOException {
+			send(val);
+		}
+
+		@Override
+		public void writeUTF(String str) throws IOException {
+			send(str);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void reset() {
+		}
+
+		@Override
+		public void close() {
+			LocalSocket.this.close();
+		}
+	}
+}
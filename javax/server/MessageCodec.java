@@ -0,0 +1,62 @@
+package javax.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes and decodes messages, when a connection sends length prefixed frames
+ * instead of using the Object streams. Every frame consists of its length, a
+ * type id and the payload written by {@code encode()}. The type id is handed
+ * back to {@code decode()}, so an implementation may use it to select the
+ * right decoding without any further header.
+ * 
+ * <p>
+ * Negative type ids are reserved, the built in {@linkplain ServerCommand}s and
+ * {@linkplain ClientCommand}s are encoded internally and never reach the codec.
+ * 
+ * <p>
+ * Implementations must be thread safe, since a single instance encodes and
+ * decodes for all connections concurrently. The server and its clients must
+ * use compatible codecs.
+ * 
+ * @author Mordechai Meisels
+ * 
+ * @see {@linkplain SerializationCodec}
+ *
+ */
+public interface MessageCodec {
+
+	/**
+	 * Returns the type id of the given message. Must not be negative.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return The type id of this message.
+	 */
+	public int typeId(Object msg);
+
+	/**
+	 * Writes the payload of the given message.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @param out
+	 *            The stream to write the payload to.
+	 */
+	public void encode(Object msg, DataOutputStream out) throws IOException;
+
+	/**
+	 * Reads a payload, previously written by {@code encode()}. The stream ends
+	 * where the payload ends.
+	 * 
+	 * @param typeId
+	 *            The type id of this message, as returned by
+	 *            {@code typeId()}.
+	 * @param in
+	 *            The stream to read the payload from.
+	 * @return The decoded message, never {@code null}.
+	 */
+	public Object decode(int typeId, DataInputStream in) throws IOException, ClassNotFoundException;
+
+}
@@ -0,0 +1,25 @@
+package javax.server;
+
+/**
+ * What to do with an asynchronous send, when the outbound queue of a
+ * connection is full.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public enum OverflowPolicy {
+	/**
+	 * The message is not sent, and its future completes with {@code false}.
+	 */
+	DROP,
+
+	/**
+	 * The sending thread blocks until there is room in the queue.
+	 */
+	BLOCK,
+
+	/**
+	 * The connection is considered too slow, and is shut down.
+	 */
+	DISCONNECT
+}
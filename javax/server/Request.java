@@ -0,0 +1,50 @@
+package javax.server;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A message sent with {@linkplain Client#request(Serializable, java.time.Duration)},
+ * waiting for a reply. The server receives it as a regular message, and
+ * should answer with
+ * {@linkplain Server.ConnectionToClient#reply(Request, Serializable)}, which
+ * completes the future returned to the client.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public final class Request implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long id;
+	private final Serializable payload;
+
+	Request(long id, Serializable payload) {
+		this.id = id;
+		this.payload = Objects.requireNonNull(payload, "payload");
+	}
+
+	/**
+	 * Returns the correlation id, unique per client connection.
+	 * 
+	 * @return The correlation id.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the message the client asked to send.
+	 * 
+	 * @return The request payload.
+	 */
+	public Serializable getPayload() {
+		return payload;
+	}
+
+	@Override
+	public String toString() {
+		return "Request[" + id + "]: " + payload;
+	}
+}
@@ -0,0 +1,48 @@
+package javax.server;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The reply to a {@linkplain Request}, carrying its correlation id. A client
+ * never hands responses to its listeners; they complete the future of the
+ * matching request instead, or are dropped if the request already timed out.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public final class Response implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long id;
+	private final Serializable payload;
+
+	Response(long id, Serializable payload) {
+		this.id = id;
+		this.payload = Objects.requireNonNull(payload, "payload");
+	}
+
+	/**
+	 * Returns the correlation id of the request answered.
+	 * 
+	 * @return The correlation id.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the reply.
+	 * 
+	 * @return The response payload.
+	 */
+	public Serializable getPayload() {
+		return payload;
+	}
+
+	@Override
+	public String toString() {
+		return "Response[" + id + "]: " + payload;
+	}
+}
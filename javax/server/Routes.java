@@ -0,0 +1,92 @@
+package javax.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Handlers registered by message type. The handlers of a concrete class (all
+ * those registered for it, its superclasses or its interfaces, in
+ * registration order) are resolved on its first message and cached, so
+ * dispatching is a single map lookup.
+ *
+ * Registrations are copy-on-write; every change starts a fresh cache, so a
+ * resolution racing with a change can't leave a stale entry behind.
+ */
+final class Routes<H> {
+
+	private static final class Route<H> {
+		final Class<?> type;
+		final H handler;
+
+		Route(Class<?> type, H handler) {
+			this.type = type;
+			this.handler = handler;
+		}
+	}
+
+	private static final class Table<H> {
+		final Route<H>[] routes;
+		final ConcurrentHashMap<Class<?>, H[]> resolved;
+
+		Table(Route<H>[] routes) {
+			this.routes = routes;
+			resolved = new ConcurrentHashMap<>();
+		}
+	}
+
+	private final H[] empty;
+	private volatile Table<H> table;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Routes(H[] empty) {
+		this.empty = empty;
+		table = new Table<>(new Route[0]);
+	}
+
+	/*
+	 * The handlers of the given concrete class. The array must not be
+	 * modified.
+	 */
+	H[] get(Class<?> type) {
+		Table<H> t = table;
+		if (t.routes.length == 0)
+			return empty;
+
+		H[] handlers = t.resolved.get(type);
+		if (handlers == null) {
+			handlers = resolve(t.routes, type);
+			t.resolved.putIfAbsent(type, handlers);
+		}
+		return handlers;
+	}
+
+	synchronized void add(Class<?> type, H handler) {
+		Route<H>[] old = table.routes;
+		Route<H>[] copy = Arrays.copyOf(old, old.length + 1);
+		copy[old.length] = new Route<>(type, handler);
+		table = new Table<>(copy);
+	}
+
+	synchronized boolean remove(Class<?> type, H handler) {
+		Route<H>[] old = table.routes;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i].type == type && old[i].handler.equals(handler)) {
+				Route<H>[] copy = Arrays.copyOf(old, old.length - 1);
+				System.arraycopy(old, i + 1, copy, i, old.length - i - 1);
+				table = new Table<>(copy);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private H[] resolve(Route<H>[] routes, Class<?> type) {
+		List<H> handlers = new ArrayList<>();
+		for (Route<H> r : routes)
+			if (r.type.isAssignableFrom(type))
+				handlers.add(r.handler);
+		return handlers.toArray(empty);
+	}
+}
@@ -0,0 +1,36 @@
+package javax.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * A {@code MessageCodec} using standard Java serialization for every message.
+ * All messages share type id {@code 0}. This is the default codec used for
+ * frames, unless another one has been set.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public class SerializationCodec implements MessageCodec {
+
+	@Override
+	public int typeId(Object msg) {
+		return 0;
+	}
+
+	@Override
+	public void encode(Object msg, DataOutputStream out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(msg);
+		oos.flush();
+	}
+
+	@Override
+	public Object decode(int typeId, DataInputStream in) throws IOException, ClassNotFoundException {
+		return new ObjectInputStream(in).readObject();
+	}
+
+}
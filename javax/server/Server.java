@@ -2,14 +2,42 @@ package javax.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 /**
  * This class, represents a standard server where clients (that use, or subclass
@@ -24,19 +52,69 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class Server {
 
 	/*
-	 * The server socket that accepts connections.
+	 * The server sockets that accept connections. A single one, shared by all
+	 * acceptor threads, unless each has its own SO_REUSEPORT socket.
 	 */
-	private ServerSocket serverSocket;
+	private volatile ServerSocket[] serverSockets;
+
+	/*
+	 * Accepting; the amount of threads calling accept(), the listen backlog
+	 * and whether every acceptor binds a socket of its own.
+	 */
+	private int acceptorThreadCount;
+	private int backlog;
+	private boolean reusePort;
+
+	/*
+	 * TLS, null for plain connections.
+	 */
+	private SSLContext sslContext;
+
+	/*
+	 * The name in-process clients connect to, null if there is none; and
+	 * whether they are passed message references, rather than copies.
+	 */
+	private String localName;
+	private boolean localByReference;
+
+	/*
+	 * Running servers, by local name.
+	 */
+	private static final ConcurrentHashMap<String, Server> localServers = new ConcurrentHashMap<>();
+
+	/*
+	 * The Unix domain socket same-host clients connect to, null if there is
+	 * none; and its listening channel, while accepting.
+	 */
+	private Path unixSocketPath;
+	private volatile ServerSocketChannel unixChannel;
 
 	/*
 	 * where all running clients are saved, and mapped by their client id's.
 	 */
-	private Map<Integer, ConnectionToClient> clients;
+	private IntMap<ConnectionToClient> clients;
+
+	/*
+	 * all incoming messages are queued here. A single inbox shared by all
+	 * message handling threads, or one per thread if dispatch is ordered.
+	 */
+	private Inbox[] messages;
+
+	/*
+	 * Capacity of each inbox, readers stop reading when full.
+	 */
+	private int messageQueueCapacity;
+
+	/*
+	 * whether messages of a single client are always handled by the same
+	 * thread.
+	 */
+	private boolean orderedDispatch;
 
 	/*
-	 * all incoming messages are queued here.
+	 * Throughput, latency and connection statistics.
 	 */
-	private LinkedBlockingQueue<Message> messages;
+	private final ServerMetrics metrics;
 
 	/*
 	 * the listening port, specified by subclass.
@@ -48,6 +126,106 @@ public class Server {
 	 */
 	private int messageHandlingThreadCount;
 
+	/*
+	 * The amount of selector threads, 0 means a reading thread per client.
+	 */
+	private int selectorThreadCount;
+
+	/*
+	 * whether the server's threads are virtual threads.
+	 */
+	private boolean virtualThreads;
+
+	/*
+	 * The selector loops, multiplexing all clients when selectorThreadCount is
+	 * positive.
+	 */
+	private EventLoop[] eventLoops;
+
+	/*
+	 * The last client id handed out.
+	 */
+	private AtomicInteger nextClientId;
+
+	/*
+	 * Ids handed to a handshake, from allocation until the client has been
+	 * registered in clients, or failed.
+	 */
+	private Set<Integer> reservedIds;
+
+	/*
+	 * Round-robin counter to spread new clients over the selector loops.
+	 */
+	private AtomicInteger nextEventLoop;
+
+	/*
+	 * Runs the handshakes of accepted sockets. Sockets arriving while
+	 * maxPendingHandshakes are queued or running are closed at once.
+	 */
+	private ThreadPoolExecutor authentication;
+	private int authenticationThreadCount;
+	private int maxPendingHandshakes;
+	private AtomicInteger pendingHandshakes;
+
+	/*
+	 * Heartbeats; idle clients are pinged, and shut down once idle for too
+	 * long. Both driven by a single timing wheel, 0 disables.
+	 */
+	private long heartbeatIntervalNanos;
+	private long idleTimeoutNanos;
+	private TimingWheel wheel;
+
+	/*
+	 * Writes pings to blocking streams, off the wheel thread: a client that
+	 * stopped reading may block a ping until it is shut down, and the wheel
+	 * must keep running to shut it down.
+	 */
+	private ThreadPoolExecutor pinging;
+
+	/*
+	 * Bound and overflow behavior of each client's asynchronous sends.
+	 */
+	private volatile int sendQueueCapacity;
+	private volatile OverflowPolicy sendOverflowPolicy;
+
+	/*
+	 * Write coalescing; a batch size of 1 and no linger means every message is
+	 * flushed on its own.
+	 */
+	private volatile int writeBatchSize;
+	private volatile long writeLingerNanos;
+
+	/*
+	 * whether broadcasts call ConnectionToClient.sendInit().
+	 */
+	private volatile boolean broadcastSendInit;
+
+	/*
+	 * Encodes frames, null means the Object streams are used (unless there are
+	 * selector threads).
+	 */
+	private MessageCodec codec;
+
+	/*
+	 * The codec connections actually use, wrapping codec with compression if
+	 * enabled. Set on start, null for the Object streams.
+	 */
+	private MessageCodec frameCodec;
+
+	/*
+	 * Payloads from this size on are compressed, negative to never compress.
+	 */
+	private int compressionThreshold;
+	private byte[][] compressionDictionaries;
+
+	/*
+	 * The unreliable side channel, negative for none; the channel, open while
+	 * running, and the codec of its messages, set on start.
+	 */
+	private int datagramPort;
+	private volatile DatagramChannel datagramChannel;
+	private MessageCodec datagramCodec;
+
 	/*
 	 * whether the server is active.
 	 */
@@ -62,7 +240,17 @@ public class Server {
 	/*
 	 * where listeners are saved.
 	 */
-	private List<ServerListener> listeners;
+	private Listeners<ServerListener> listeners;
+
+	/*
+	 * Handlers of received messages, by message type.
+	 */
+	private Routes<ServerHandler<?>> routes;
+
+	/*
+	 * Clients by subscribed topic.
+	 */
+	private Topics<ConnectionToClient> topics;
 
 	/**
 	 * Maximum time allowed for new connection to hang, on authentication and
@@ -70,6 +258,33 @@ public class Server {
 	 */
 	public static final int TIMEOUT = 10000;
 
+	/*
+	 * Initial size of the per client read buffer, in selector mode. It grows
+	 * as needed to fit a whole frame.
+	 */
+	private static final int INITIAL_READ_BUFFER = 8192;
+
+	/**
+	 * Default amount of asynchronous sends each client may have queued.
+	 */
+	public static final int DEFAULT_SEND_QUEUE_CAPACITY = 1024;
+
+	/**
+	 * Default length of the queue of incoming connections, not accepted yet.
+	 */
+	public static final int DEFAULT_BACKLOG = 50;
+
+	/**
+	 * Default amount of threads running handshakes.
+	 */
+	public static final int DEFAULT_AUTHENTICATION_THREAD_COUNT = 16;
+
+	/**
+	 * Default amount of accepted connections that may wait for, or be in the
+	 * middle of, their handshake.
+	 */
+	public static final int DEFAULT_MAX_PENDING_HANDSHAKES = 1024;
+
 	/**
 	 * Constructs a {@code Server} listening for clients on specified port, and
 	 * specified amount of message handling threads. If the given thread count
@@ -78,7 +293,9 @@ public class Server {
 	 * <p>
 	 * Please Note: Setting the thread count to more than one, may cause the
 	 * listeners to receive messages asynchronously. Use synchronization as
-	 * needed, or reconsider using multiple threads.
+	 * needed, or reconsider using multiple threads. Messages of a single client
+	 * may also be handled out of order, unless {@code setOrderedDispatch()} is
+	 * used.
 	 * 
 	 * <p>
 	 * The server will start running when the {@code start()} method is invoked. It can be stopped, by
@@ -93,17 +310,35 @@ public class Server {
 	 */
 	public Server(int port, int messageHandlingThreadCount) {
 		this.port = port;
-		clients = Collections.synchronizedMap(new HashMap<>());
-		messages = new LinkedBlockingQueue<>();
-		listeners = Collections.synchronizedList(new ArrayList<>());
+		clients = new IntMap<>();
+		listeners = new Listeners<>(new ServerListener[0]);
+		routes = new Routes<>(new ServerHandler<?>[0]);
+		topics = new Topics<>();
 		this.messageHandlingThreadCount = Math.max(1, messageHandlingThreadCount);
+		nextClientId = new AtomicInteger();
+		reservedIds = ConcurrentHashMap.newKeySet();
+		nextEventLoop = new AtomicInteger();
+		acceptorThreadCount = 1;
+		backlog = DEFAULT_BACKLOG;
+		authenticationThreadCount = DEFAULT_AUTHENTICATION_THREAD_COUNT;
+		maxPendingHandshakes = DEFAULT_MAX_PENDING_HANDSHAKES;
+		compressionThreshold = -1;
+		compressionDictionaries = new byte[0][];
+		datagramPort = -1;
+		pendingHandshakes = new AtomicInteger();
+		messageQueueCapacity = Integer.MAX_VALUE;
+		sendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+		sendOverflowPolicy = OverflowPolicy.BLOCK;
+		writeBatchSize = 1;
 		clientLimit = -1;
+		metrics = new ServerMetrics(this);
 		alive = true;
 
 		addServerListener(new ServerAdapter() {
 			@Override
 			public void commandReceived(Server server, ConnectionToClient ctc, Command cmd) {
-				if (cmd == ClientCommand.DISCONNECT) {
+				// ctc is null if the socket was closed before the command was handled
+				if (cmd == ClientCommand.DISCONNECT && ctc != null) {
 					ctc.localShutDown();
 				}
 			}
@@ -182,10 +417,10 @@ public class Server {
 	 * connect. a subclass may exchange any information - as passwords - from or
 	 * to client, as long {@linkplain Client#connectionInit} is overridden
 	 * accordingly. The subclass may, as well, do here any initialization
-	 * required for each new connection. Examples include, wrapping the streams
-	 * (e.g. with {@code javax.crypto.CipherOutputStream} - for network
-	 * security), which is allowed, as long the top-most stream is an Object
-	 * stream.
+	 * required for each new connection. Wrapping the streams is allowed, as
+	 * long the top-most stream is an Object stream; for network security use
+	 * {@linkplain #setSSLContext} instead, which has encrypted the connection
+	 * before this method is called.
 	 * 
 	 * <p>
 	 * In any event, where a subclass want's to reject a specific connection, it
@@ -243,7 +478,9 @@ public class Server {
 	}
 
 	/**
-	 * Returns a {@code Collection} of all active clients.
+	 * Returns a {@code Collection} of all active clients. It is a live view;
+	 * iterating it is safe while clients connect and disconnect, and may or
+	 * may not reflect those changes.
 	 * 
 	 * @return A {@code Collection} of all active clients.
 	 */
@@ -274,186 +511,1341 @@ public class Server {
 	}
 
 	/**
-	 * Sends a serializable message for the specified client, may be a command,
-	 * too.
+	 * Sets whether all messages of a single client should be handled by the
+	 * same message handling thread. Each thread then takes from its own queue,
+	 * and clients are spread over the threads by their id; so messages of a
+	 * client reach the listeners in the order they were sent, while different
+	 * clients are still handled in parallel without contending on a single
+	 * queue.
 	 * 
-	 * @param msg
-	 *            The message to be sent.
-	 * @param id
-	 *            The clients id to whom to send to.
-	 * @return {@code true} if the sending went through without errors.
+	 * <p>
+	 * A busy client may delay other clients sharing its thread, which won't
+	 * happen with the default shared queue. This has no effect with a single
+	 * message handling thread, which is always ordered.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param ordered
+	 *            Whether to handle the messages of each client in order.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
 	 */
-	public boolean send(Serializable msg, int id) {
-		if (!running() || msg == null)
-			return false;
-		ConnectionToClient ctc = getClient(id);
-		if (ctc == null)
-			return false;
-		return ctc.send(msg);
+	public void setOrderedDispatch(boolean ordered) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		orderedDispatch = ordered;
 	}
 
 	/**
-	 * Sends a serializable message to all active clients, may be a command,
-	 * too.
+	 * Returns whether all messages of a single client are handled by the same
+	 * message handling thread.
 	 * 
-	 * @param msg
-	 *            The message to be sent.
-	 * @return {@code true} only if message went through to "all" clients.
+	 * @return Whether the messages of each client are handled in order.
 	 */
-	public boolean sendToAll(Serializable msg) {
-		if (!running())
-			return false;
-		boolean passed = true;
-		for (ConnectionToClient c : getClients())
-			passed &= c.send(msg);
-		return passed; // all went through
+	public boolean isOrderedDispatch() {
+		return orderedDispatch;
 	}
 
 	/**
-	 * Returns the listening port of the server socket.
+	 * Sets the maximum amount of received messages waiting to be handled. Once
+	 * full, clients are no longer read from until there is room again: reading
+	 * threads block, and selector threads stop selecting the client for reads.
+	 * So a flooding client is pushed back by TCP flow control, rather than
+	 * growing the heap. With ordered dispatch, each message handling thread has
+	 * a queue of this capacity.
 	 * 
-	 * @return The listening port of the server socket.
+	 * <p>
+	 * The default is unbounded. This method must be called before the server
+	 * is started.
+	 * 
+	 * @param capacity
+	 *            The maximum amount of queued messages.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
 	 */
-	public int getPort() {
-		return port;
+	public void setMessageQueueCapacity(int capacity) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		messageQueueCapacity = Math.max(1, capacity);
 	}
 
-	private volatile boolean started = false;
+	/**
+	 * Returns the maximum amount of received messages waiting to be handled.
+	 * 
+	 * @return The maximum amount of queued messages.
+	 */
+	public int getMessageQueueCapacity() {
+		return messageQueueCapacity;
+	}
 
 	/**
-	 * Starts the server, and returns if it has successfully started.
+	 * Returns the amount of received messages currently waiting to be
+	 * handled.
+	 * 
+	 * @return The amount of queued messages.
+	 */
+	public int getMessageQueueDepth() {
+		Inbox[] inboxes = messages;
+		if (inboxes == null)
+			return 0;
+
+		int depth = 0;
+		for (Inbox inbox : inboxes)
+			depth += inbox.queue.size();
+		return depth;
+	}
+
+	/**
+	 * Sets the amount of selector threads, that multiplex all client
+	 * connections. A positive count replaces the reading thread, that is
+	 * otherwise started for every client, with a small fixed pool of threads
+	 * reading without blocking. {@code 0} (the default) keeps one reading
+	 * thread per client.
 	 * 
 	 * <p>
-	 * If the server has been shut down once (dead) or running already, it will
-	 * not be started, and will return {@code false}.
+	 * Once a connection has been authenticated, its messages will be sent
+	 * length prefixed instead of over the Object streams, so the selector
+	 * threads can tell where every message ends; the client is switched over
+	 * by receiving {@code ServerCommand.CONNECTED_FRAMED} instead of
+	 * {@code ServerCommand.CONNECTED}. Any wrapping of the streams done in
+	 * {@code connectionInit()} is therefore only effective during
+	 * authentication. Messages are encoded with the codec set by
+	 * {@code setMessageCodec()}, or with a {@linkplain SerializationCodec} if
+	 * none.
 	 * 
-	 * @return If the server has been started successfully.
-	 * @return
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param count
+	 *            The amount of selector threads, or {@code 0} for a reading
+	 *            thread per client.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
 	 */
-	public boolean start() {
-		if (!isAlive() || running())
-			return false;
-
-		/*
-		 * double check to avoid unnecessary synchronization. (Saw it in
-		 * Effective Java, by Joshua Bloch)
-		 */
+	public void setSelectorThreadCount(int count) {
 		if (started)
-			return false;
-		synchronized (this) {
-			if (started)
-				return false;
-			started = true;
-		}
-
-		try {
-			serverSocket = new ServerSocket(this.port);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
-		}
-
-		running = true;
-
-		Thread acception = new Thread(new Acception(), "Client acception thread");
-
-		for (int i = 0; i < messageHandlingThreadCount; i++) {
-			Thread t = new Thread(new MessageHandling(), "Received messages handler thread #" + i);
-			t.setDaemon(true);
-			t.start();
-		}
+			throw new IllegalStateException("Server already started.");
+		selectorThreadCount = Math.max(0, count);
+	}
 
-		acception.setDaemon(true);
-		acception.start();
+	/**
+	 * Returns the amount of selector threads, multiplexing client connections,
+	 * or {@code 0} if every client has its own reading thread.
+	 * 
+	 * @return The amount of selector threads.
+	 */
+	public int getSelectorThreadCount() {
+		return selectorThreadCount;
+	}
 
-		return true;
+	/**
+	 * Sets the amount of threads accepting new connections. By default they
+	 * all share a single server socket; see {@code setReusePort()} to give
+	 * each its own.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param count
+	 *            The amount of acceptor threads, at least 1.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setAcceptorThreadCount(int count) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		acceptorThreadCount = Math.max(1, count);
 	}
 
 	/**
-	 * Blocks the calling thread, until the server has been shut down or
-	 * unsynced.
+	 * Returns the amount of threads accepting new connections.
 	 * 
-	 * @throws InterruptedException
-	 *             If the thread has been interrupted while waiting.
+	 * @return The amount of acceptor threads.
 	 */
-	public void sync() throws InterruptedException {
-		if (!running)
-			return;
-		synchronized (this) {
-			if (!running)
-				return;
-			wait();
-		}
+	public int getAcceptorThreadCount() {
+		return acceptorThreadCount;
 	}
 
 	/**
-	 * Blocks the calling thread for the given time, until the server has been
-	 * shut down or unsynced.
+	 * Sets the maximum length of the queue of incoming connections, that have
+	 * not been accepted yet. Connection attempts beyond it may be refused, or
+	 * silently dropped by the operating system, which may cap it further. With
+	 * {@code setReusePort()} every socket has a backlog of its own.
 	 * 
-	 * @param timeout
-	 *            The maximum amount of milliseconds to block.
+	 * <p>
+	 * This method must be called before the server is started.
 	 * 
-	 * @throws InterruptedException
-	 *             If the thread has been interrupted while waiting.
+	 * @param backlog
+	 *            The listen backlog, at least 1.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
 	 */
-	public void sync(int timeout) throws InterruptedException {
-		if (!running)
-			return;
-		synchronized (this) {
-			if (!running)
-				return;
-			wait(timeout);
-		}
+	public void setBacklog(int backlog) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		this.backlog = Math.max(1, backlog);
 	}
 
 	/**
-	 * Unblocks all blocked threads, which called {@code sync()}.
+	 * Returns the maximum length of the queue of incoming connections.
+	 * 
+	 * @return The listen backlog.
 	 */
-	synchronized public void unsync() {
-		notifyAll();
+	public int getBacklog() {
+		return backlog;
 	}
 
 	/**
-	 * Stops accepting new connections, and clears the accept mechanism
-	 * resources. The existing connections are preserved. There is no way to
-	 * accept again with this instance, once stopped.
+	 * Sets whether every acceptor thread binds a server socket of its own to
+	 * the port, using the {@code SO_REUSEPORT} socket option. On Linux the
+	 * kernel then spreads incoming connections over the sockets, so acceptors
+	 * don't contend on a single accept queue. Other systems may support the
+	 * option without spreading connections evenly.
 	 * 
 	 * <p>
-	 * In case a user chooses to limit the number of accepted clients, they
-	 * should rather use {@code setClientLimit()} since old clients may
-	 * disconnect, and in turn allow new clients;
+	 * This method must be called before the server is started.
+	 * 
+	 * @param reuse
+	 *            Whether each acceptor has its own socket.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 * @throws UnsupportedOperationException
+	 *             If the runtime does not support {@code SO_REUSEPORT}.
 	 */
-	public void stopAccepting() {
-		try {
-			serverSocket.close();
+	public void setReusePort(boolean reuse) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		if (reuse && !reusePortSupported())
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported by this runtime.");
+		reusePort = reuse;
+	}
+
+	/**
+	 * Returns whether every acceptor thread has a server socket of its own.
+	 * 
+	 * @return Whether {@code SO_REUSEPORT} is used.
+	 */
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	private static boolean reusePortSupported() {
+		try (ServerSocket ss = new ServerSocket()) {
+			return ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
 		} catch (IOException e) {
+			return false;
 		}
-		serverSocket = null;
 	}
 
 	/**
-	 * Rejects incoming connections, if the server reached the given limit. If
-	 * clients disconnects, new connections will be allowed again. To stop
-	 * accepting permanently use {@code stopAccepting()}. Use any negative to
-	 * allow infinite connections.
+	 * Sets the context used to secure every connection with TLS. Clients must
+	 * then connect with TLS too, see {@linkplain Client#setSSLContext}. The TLS
+	 * handshake runs before the {@code HANDSHAKE} command, on the
+	 * authentication threads.
 	 * 
 	 * <p>
-	 * Note: Even if the connection will eventually be rejected, as it reached
-	 * the limit; it will still call {@code connectionInit()} (this has been
-	 * coded this way, not to block the client, as it waits some data in its
-	 * {@code connectionInit()}). The listeners will <i>not</i> be notified.
+	 * With selector threads each connection is driven by an {@code SSLEngine},
+	 * so encrypted clients need no thread of their own either. Otherwise the
+	 * server listens on an {@code SSLServerSocket}.
 	 * 
 	 * <p>
-	 * This method will only affect new connections. Setting the limit to lower
-	 * than currently connected clients, will only ensure not to accept new
-	 * until it reaches that number. Existing clients are preserved.
+	 * Sessions are cached by the context's server session context, so
+	 * reconnecting clients resume their session instead of running a full
+	 * handshake; its size and timeout control how long that is possible.
+	 * Protocols, cipher suites and client authentication are taken from the
+	 * context's default parameters.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param context
+	 *            The TLS context, or {@code null} for plain connections.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started, or has a datagram
+	 *             side channel (see {@code setDatagramPort()}).
 	 */
-	public void setClientLimit(int limit) {
-		clientLimit = limit;
+	public void setSSLContext(SSLContext context) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		if (context != null && datagramPort >= 0)
+			throw new IllegalStateException("The datagram side channel is not encrypted, it can't be used with TLS.");
+		sslContext = context;
 	}
 
-	public int getClientLimit() {
-		return clientLimit;
+	/**
+	 * Returns the context used to secure connections with TLS.
+	 * 
+	 * @return The TLS context, or {@code null} for plain connections.
+	 */
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Sets a name, unique within the JVM, under which in-process clients can
+	 * connect to this server (see {@linkplain Client#Client(String)}), in
+	 * addition to connecting over TCP. In-process clients go through the same
+	 * handshake, {@code connectionInit()} included, and the same listeners
+	 * and handlers; but their messages are handed over in memory, through a
+	 * lock-free queue per direction, without any sockets.
+	 * 
+	 * <p>
+	 * Messages are still copied, by encoding and decoding them with the
+	 * message codec, unless {@code setLocalByReference()} is set.
+	 * In-process connections never use frames, so their
+	 * {@code connectionInit()} streams may be used in any mode, but only
+	 * support reading and writing objects, ints, longs, booleans and UTF
+	 * strings.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started. Starting
+	 * fails if another running server has the same name.
+	 * 
+	 * @param name
+	 *            The local name, or {@code null} for TCP only.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setLocalName(String name) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		localName = name;
+	}
+
+	/**
+	 * Returns the name under which in-process clients can connect.
+	 * 
+	 * @return The local name, or {@code null} if there is none.
+	 */
+	public String getLocalName() {
+		return localName;
+	}
+
+	/**
+	 * Sets whether messages of in-process clients, in both directions, are
+	 * passed by reference instead of being copied. This saves encoding and
+	 * decoding every message, but the receiver then shares the very object
+	 * the sender passed; it should not be modified by either side, once
+	 * sent. The default is {@code false}.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param byReference
+	 *            Whether to pass messages by reference.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setLocalByReference(boolean byReference) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		localByReference = byReference;
+	}
+
+	/**
+	 * Returns whether messages of in-process clients are passed by reference.
+	 * 
+	 * @return Whether messages are passed by reference.
+	 */
+	public boolean isLocalByReference() {
+		return localByReference;
+	}
+
+	/**
+	 * Sets the path of a Unix domain socket, on which clients on the same host
+	 * can connect to this server (see {@linkplain Client#Client(Path)}), in
+	 * addition to connecting over TCP. Unix domain connections skip the TCP
+	 * stack altogether, but are otherwise the same: the same handshake,
+	 * {@code connectionInit()} included, and the same listeners and handlers,
+	 * in either threading mode.
+	 * 
+	 * <p>
+	 * Unix domain connections never leave the host and are never encrypted,
+	 * even if {@code setSSLContext()} is set; access is rather controlled by
+	 * the permissions of the socket file. The file is created on start and
+	 * deleted once the server stops accepting. A socket file left by a server
+	 * that is gone is replaced; starting fails if the path is in use, or is
+	 * anything other than a socket file.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param path
+	 *            The socket file path, or {@code null} for TCP only.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setUnixSocketPath(Path path) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		unixSocketPath = path;
+	}
+
+	/**
+	 * Returns the path of the Unix domain socket clients can connect to.
+	 * 
+	 * @return The socket file path, or {@code null} if there is none.
+	 */
+	public Path getUnixSocketPath() {
+		return unixSocketPath;
+	}
+
+	/*
+	 * Connects an in-process client, returns the client's end.
+	 */
+	static LocalSocket connectLocal(String name) throws IOException {
+		Server server = localServers.get(name);
+		if (server == null || !server.running())
+			throw new ConnectException("No server named: " + name);
+		return server.acceptLocal();
+	}
+
+	private LocalSocket acceptLocal() throws IOException {
+		// same load shedding as for accepted sockets
+		if (pendingHandshakes.incrementAndGet() > maxPendingHandshakes) {
+			pendingHandshakes.decrementAndGet();
+			metrics.handshakeFailed();
+			throw new ConnectException("Too many pending handshakes.");
+		}
+
+		LocalSocket[] ends;
+		try {
+			ends = LocalSocket.pair(localName,
+					localByReference ? null : codec != null ? codec : Frames.DEFAULT_CODEC);
+		} catch (IOException | RuntimeException e) {
+			pendingHandshakes.decrementAndGet();
+			throw e;
+		}
+		authenticate(ends[1]);
+		return ends[0];
+	}
+
+	/**
+	 * Sets how long a client may stay silent before it is sent a
+	 * {@code ServerCommand.PING}. A {@linkplain Client} answers with a
+	 * {@code ClientCommand.PONG} at once, so a live client is never idle for
+	 * long, even if it has nothing to send. Heartbeat commands are not passed
+	 * to the listeners.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param millis
+	 *            The heartbeat interval in milliseconds, 0 to never ping.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setHeartbeatInterval(long millis) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		heartbeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Returns how long a client may stay silent before it is pinged.
+	 * 
+	 * @return The heartbeat interval in milliseconds, 0 if disabled.
+	 */
+	public long getHeartbeatInterval() {
+		return TimeUnit.NANOSECONDS.toMillis(heartbeatIntervalNanos);
+	}
+
+	/**
+	 * Sets how long a client may stay silent before it is considered dead (a
+	 * closed NAT mapping, a pulled cable) and shut down. Its socket is closed
+	 * first, so {@code clientDisconnected} is called without a
+	 * {@code DISCONNECTED} command being sent. Should be a few heartbeat
+	 * intervals, so a single lost ping doesn't drop the client.
+	 * 
+	 * <p>
+	 * Idle clients are found by a single timing wheel thread, rather than a
+	 * timer per client, and are shut down on that thread.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param millis
+	 *            The idle timeout in milliseconds, 0 to never time out.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setIdleTimeout(long millis) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Returns how long a client may stay silent before it is shut down.
+	 * 
+	 * @return The idle timeout in milliseconds, 0 if disabled.
+	 */
+	public long getIdleTimeout() {
+		return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+	}
+
+	/**
+	 * Sets the amount of threads running the handshakes of newly accepted
+	 * sockets. Handshakes beyond this amount wait for a free thread; idle
+	 * threads exit after a minute.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param count
+	 *            The amount of authentication threads, at least 1.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setAuthenticationThreadCount(int count) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		authenticationThreadCount = Math.max(1, count);
+	}
+
+	/**
+	 * Returns the amount of threads running handshakes.
+	 * 
+	 * @return The amount of authentication threads.
+	 */
+	public int getAuthenticationThreadCount() {
+		return authenticationThreadCount;
+	}
+
+	/**
+	 * Sets the maximum amount of accepted sockets waiting for, or in the middle
+	 * of, their handshake. Sockets accepted beyond this limit are closed at
+	 * once, before any stream is allocated, so a reconnect storm can't pile up
+	 * work faster than handshakes complete. Such clients fail to start, and
+	 * may retry.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param max
+	 *            The maximum amount of pending handshakes, at least 1.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setMaxPendingHandshakes(int max) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		maxPendingHandshakes = Math.max(1, max);
+	}
+
+	/**
+	 * Returns the maximum amount of accepted sockets waiting for, or in the
+	 * middle of, their handshake.
+	 * 
+	 * @return The maximum amount of pending handshakes.
+	 */
+	public int getMaxPendingHandshakes() {
+		return maxPendingHandshakes;
+	}
+
+	/**
+	 * Returns the amount of accepted sockets currently waiting for, or in the
+	 * middle of, their handshake.
+	 * 
+	 * @return The amount of pending handshakes.
+	 */
+	public int getPendingHandshakeCount() {
+		return pendingHandshakes.get();
+	}
+
+	/**
+	 * Sets the codec used to encode and decode messages, once a connection has
+	 * been authenticated. Every message is then sent as a length prefixed frame
+	 * holding a type id and the payload written by the codec, over the raw
+	 * socket streams; this avoids the overhead of the Object streams, which
+	 * resend class descriptors after every reset. Authentication, including
+	 * {@code connectionInit()}, always uses the Object streams.
+	 * 
+	 * <p>
+	 * Clients must use a compatible codec, see
+	 * {@linkplain Client#setMessageCodec}. {@code null} (the default) keeps
+	 * the Object streams, or uses a {@linkplain SerializationCodec} if the
+	 * server has selector threads.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param codec
+	 *            The codec to use, or {@code null} for the Object streams.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setMessageCodec(MessageCodec codec) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns the codec used to encode and decode messages, or {@code null} if
+	 * none has been set.
+	 * 
+	 * @return The codec used to encode and decode messages.
+	 */
+	public MessageCodec getMessageCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the payload size, in bytes, from which messages are compressed
+	 * with Deflate, in both directions. Smaller messages are sent as they are.
+	 * Enabling compression implies frames (see {@code setMessageCodec()}),
+	 * with the message codec wrapped by a {@linkplain CompressionCodec}; the
+	 * threshold is handed to every client during the handshake, so clients
+	 * need no configuration, except for dictionaries.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param bytes
+	 *            The compression threshold in bytes, or a negative value to
+	 *            never compress.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setCompressionThreshold(int bytes) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		compressionThreshold = bytes < 0 ? -1 : bytes;
+	}
+
+	/**
+	 * Returns the payload size from which messages are compressed.
+	 * 
+	 * @return The compression threshold in bytes, or {@code -1} if disabled.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Sets preset dictionaries for compression, holding byte sequences common
+	 * in the messages. The first is used to compress, any of them may be used
+	 * by the other side. Clients must know the same dictionaries, see
+	 * {@linkplain Client#setCompressionDictionaries}.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param dictionaries
+	 *            The dictionaries, none to compress without.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 */
+	public void setCompressionDictionaries(byte[]... dictionaries) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		compressionDictionaries = dictionaries == null ? new byte[0][] : dictionaries.clone();
+	}
+
+	/**
+	 * Returns the preset dictionaries for compression.
+	 * 
+	 * @return The dictionaries, possibly none.
+	 */
+	public byte[][] getCompressionDictionaries() {
+		return compressionDictionaries.clone();
+	}
+
+	/**
+	 * Sets the UDP port of an unreliable side channel, next to the connection
+	 * of every client; for frequent messages where only the latest counts,
+	 * e.g. position updates, that should not wait behind the reliable stream
+	 * (see {@linkplain ConnectionToClient#sendUnreliable} and
+	 * {@linkplain Client#sendUnreliable}).
+	 * 
+	 * <p>
+	 * Every client is handed the port and a random key during the handshake.
+	 * Its datagrams carry its id and a sequence number, and are authenticated
+	 * with an HMAC under the key, so they are only taken from the client
+	 * itself (likewise for those it receives). A datagram arriving after a
+	 * later one (or twice) is dropped, as are datagrams arriving while the
+	 * inbox is full (see {@code setMessageQueueCapacity()}). Datagrams that are
+	 * lost are not sent again; after about a million lost in a row, the side
+	 * channel of that client stops working. Messages received this way are
+	 * handled by the same listeners and handlers as any other.
+	 * 
+	 * <p>
+	 * Datagrams are not encrypted, so the side channel can't be used together
+	 * with TLS (see {@code setSSLContext()}).
+	 * 
+	 * <p>
+	 * The server only learns where to send a client's datagrams from the
+	 * datagrams it receives from it; a {@linkplain Client} sends one on
+	 * connecting and on every heartbeat (see {@code setHeartbeatInterval()}),
+	 * to cope with losses and NATs.
+	 * 
+	 * <p>
+	 * Each message must fit into a single datagram, and is encoded with the
+	 * message codec, never compressed. In-process clients have no side
+	 * channel, their unreliable messages are sent like any other.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param port
+	 *            The UDP port, 0 for any free port, or a negative value for
+	 *            no side channel.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started, or uses TLS.
+	 */
+	public void setDatagramPort(int port) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		if (port >= 0 && sslContext != null)
+			throw new IllegalStateException("The datagram side channel is not encrypted, it can't be used with TLS.");
+		datagramPort = port < 0 ? -1 : port;
+	}
+
+	/**
+	 * Returns the UDP port of the unreliable side channel. While running, this
+	 * is the port actually bound.
+	 * 
+	 * @return The UDP port, or {@code -1} if there is no side channel.
+	 */
+	public int getDatagramPort() {
+		DatagramChannel dc = datagramChannel;
+		if (dc != null) {
+			try {
+				return ((InetSocketAddress) dc.getLocalAddress()).getPort();
+			} catch (IOException e) {
+			}
+		}
+		return datagramPort;
+	}
+
+	/**
+	 * Sets whether acception, authentication, client reading and message
+	 * handling should run on virtual threads, instead of platform threads.
+	 * Virtual threads are cheap to block, so the default reading thread per
+	 * client may scale to a large amount of mostly idle clients. Selector
+	 * threads, if any, always run on platform threads.
+	 * 
+	 * <p>
+	 * This method must be called before the server is started.
+	 * 
+	 * @param virtual
+	 *            Whether to use virtual threads.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the server has already been started.
+	 * @throws UnsupportedOperationException
+	 *             If the runtime does not support virtual threads.
+	 */
+	public void setVirtualThreads(boolean virtual) {
+		if (started)
+			throw new IllegalStateException("Server already started.");
+		if (virtual && !Threads.virtualSupported())
+			throw new UnsupportedOperationException("Virtual threads are not supported by this runtime.");
+		virtualThreads = virtual;
+	}
+
+	/**
+	 * Returns whether the server's threads are virtual threads.
+	 * 
+	 * @return Whether the server's threads are virtual threads.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Sends a serializable message for the specified client, may be a command,
+	 * too.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @param id
+	 *            The clients id to whom to send to.
+	 * @return {@code true} if the sending went through without errors.
+	 */
+	public boolean send(Serializable msg, int id) {
+		if (!running() || msg == null)
+			return false;
+		ConnectionToClient ctc = getClient(id);
+		if (ctc == null)
+			return false;
+		return ctc.send(msg);
+	}
+
+	/**
+	 * Sends a serializable message for the specified client over the
+	 * unreliable side channel. See {@linkplain ConnectionToClient#sendUnreliable}.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @param id
+	 *            The clients id to whom to send to.
+	 * @return {@code true} if the datagram has been sent.
+	 */
+	public boolean sendUnreliable(Serializable msg, int id) {
+		if (!running() || msg == null)
+			return false;
+		ConnectionToClient ctc = getClient(id);
+		if (ctc == null)
+			return false;
+		return ctc.sendUnreliable(msg);
+	}
+
+	/**
+	 * Sends a serializable message for the specified client without blocking,
+	 * may be a command, too. See {@linkplain ConnectionToClient#sendAsync}.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @param id
+	 *            The clients id to whom to send to.
+	 * @return A future completing with {@code true} once the message has been
+	 *         written, or {@code false} if it could not be sent.
+	 */
+	public CompletableFuture<Boolean> sendAsync(Serializable msg, int id) {
+		ConnectionToClient ctc = running() ? getClient(id) : null;
+		if (ctc == null)
+			return CompletableFuture.completedFuture(false);
+		return ctc.sendAsync(msg);
+	}
+
+	/**
+	 * Sets the maximum amount of asynchronous sends, queued for a single
+	 * client. Once reached, further sends are handled according to the
+	 * overflow policy. Only affects clients connecting afterwards.
+	 * 
+	 * @param capacity
+	 *            The maximum amount of queued messages, per client.
+	 */
+	public void setSendQueueCapacity(int capacity) {
+		sendQueueCapacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Returns the maximum amount of asynchronous sends, queued for a single
+	 * client.
+	 * 
+	 * @return The maximum amount of queued messages, per client.
+	 */
+	public int getSendQueueCapacity() {
+		return sendQueueCapacity;
+	}
+
+	/**
+	 * Sets what to do with an asynchronous send, when the client's queue is
+	 * full. The default is {@code OverflowPolicy.BLOCK}.
+	 * 
+	 * @param policy
+	 *            The overflow policy.
+	 */
+	public void setSendOverflowPolicy(OverflowPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException("policy");
+		sendOverflowPolicy = policy;
+	}
+
+	/**
+	 * Returns what is done with an asynchronous send, when the client's queue
+	 * is full.
+	 * 
+	 * @return The overflow policy.
+	 */
+	public OverflowPolicy getSendOverflowPolicy() {
+		return sendOverflowPolicy;
+	}
+
+	/**
+	 * Sets the maximum amount of messages written to a client with a single
+	 * flush. If larger than 1, or a linger time is set, all sends to a client
+	 * are queued (as with {@code sendAsync()}) and its writer thread writes
+	 * everything queued since the last flush at once, trading a little
+	 * latency for far less system calls. {@code send()} then returns once the
+	 * message is queued.
+	 * 
+	 * <p>
+	 * With the Object streams, the stream's internal buffer limits how much is
+	 * actually written at once. Connections driven by selector threads are not
+	 * affected; they always write all pending frames with a single gathering
+	 * write. Only affects clients connecting afterwards.
+	 * 
+	 * @param size
+	 *            The maximum amount of messages per flush, 1 to flush every
+	 *            message.
+	 */
+	public void setWriteBatchSize(int size) {
+		writeBatchSize = Math.max(1, size);
+	}
+
+	/**
+	 * Returns the maximum amount of messages written to a client with a single
+	 * flush.
+	 * 
+	 * @return The maximum amount of messages per flush.
+	 */
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+	/**
+	 * Sets how long a client's writer thread may wait for further messages,
+	 * before flushing a batch that is not full. Much like Nagle's algorithm,
+	 * but on whole messages. See {@code setWriteBatchSize()}.
+	 * 
+	 * @param millis
+	 *            The maximum linger time in milliseconds, 0 to flush as soon as
+	 *            the queue is empty.
+	 */
+	public void setWriteLinger(long millis) {
+		writeLingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+	}
+
+	/**
+	 * Returns how long a client's writer thread may wait for further messages,
+	 * before flushing a batch that is not full.
+	 * 
+	 * @return The maximum linger time in milliseconds.
+	 */
+	public long getWriteLinger() {
+		return TimeUnit.NANOSECONDS.toMillis(writeLingerNanos);
+	}
+
+	/**
+	 * Sends a serializable message to all active clients, may be a command,
+	 * too.
+	 * 
+	 * <p>
+	 * If connections send frames (see {@code setMessageCodec()}), the message
+	 * is encoded only once, and the same bytes are written to every client.
+	 * {@code ConnectionToClient.sendInit()} is then bypassed, unless enabled
+	 * by {@code setBroadcastSendInit()}.
+	 * 
+	 * @param msg
+	 *            The message to be sent.
+	 * @return {@code true} only if message went through to "all" clients.
+	 */
+	public boolean sendToAll(Serializable msg) {
+		if (!running())
+			return false;
+
+		return sendToEach(getClients(), msg);
+	}
+
+	/*
+	 * Sends to every given client, encoding only once if frames are used.
+	 */
+	private boolean sendToEach(Iterable<ConnectionToClient> clients, Serializable msg) {
+		MessageCodec frameCodec = this.frameCodec;
+		boolean passed = true;
+		if (frameCodec == null) {
+			for (ConnectionToClient c : clients)
+				passed &= c.send(msg);
+			return passed; // all went through
+		}
+
+		if (msg == null)
+			return false;
+
+		ByteBuffer frame = null;
+		try {
+			for (ConnectionToClient c : clients) {
+				Serializable init = broadcastSendInit ? c.sendInit(msg) : msg;
+				if (init == null) {
+					passed = false;
+				} else if (init != msg) {
+					// changed for this client only
+					passed &= c.sendEncoded(init, Frames.encode(frameCodec, init));
+				} else {
+					if (frame == null)
+						frame = Frames.encode(frameCodec, msg);
+					passed &= c.sendEncoded(msg, frame);
+				}
+			}
+		} catch (IOException e) {
+			return false; // not encodable
+		}
+		return passed; // all went through
+	}
+
+	/**
+	 * Sets whether {@code sendToAll()} should call
+	 * {@code ConnectionToClient.sendInit()} for every client, when the message
+	 * is encoded only once. Clients for which {@code sendInit()} returns the
+	 * same instance still share the encoded bytes; others are encoded
+	 * separately. The default is {@code false}, which skips
+	 * {@code sendInit()} on broadcasts.
+	 * 
+	 * <p>
+	 * This has no effect when the Object streams are used, where every client
+	 * is sent to separately, {@code sendInit()} included.
+	 * 
+	 * @param enabled
+	 *            Whether broadcasts should call {@code sendInit()}.
+	 */
+	public void setBroadcastSendInit(boolean enabled) {
+		broadcastSendInit = enabled;
+	}
+
+	/**
+	 * Returns whether {@code sendToAll()} calls
+	 * {@code ConnectionToClient.sendInit()} when the message is encoded only
+	 * once.
+	 * 
+	 * @return Whether broadcasts call {@code sendInit()}.
+	 */
+	public boolean isBroadcastSendInit() {
+		return broadcastSendInit;
+	}
+
+	/**
+	 * Subscribes a client to a topic, so it receives whatever is published to
+	 * it with {@code publish()}. Topics are dot separated segments, e.g.
+	 * {@code "chat.room1"}. A subscription may use wildcards as whole
+	 * segments: {@code "*"} matches any single segment, as in
+	 * {@code "chat.*.typing"}, and a trailing {@code "#"} matches the rest of
+	 * the topic, zero or more segments, as in {@code "chat.#"}.
+	 * 
+	 * <p>
+	 * Clients are unsubscribed from all their topics when they disconnect.
+	 * 
+	 * @param topic
+	 *            The topic, may contain wildcards.
+	 * @param client
+	 *            The client to subscribe.
+	 * @return If the client was not yet subscribed to this topic, and is still
+	 *         connected.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the topic has empty segments, or a {@code "#"} before
+	 *             the last segment.
+	 */
+	public boolean subscribe(String topic, ConnectionToClient client) {
+		if (!topics.add(topic, client))
+			return false;
+		client.subscriptions.add(topic);
+
+		// may have raced with localShutDown(), which unsubscribes
+		if (!client.localAlive) {
+			unsubscribe(topic, client);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Unsubscribes a client from a topic. The topic must be given exactly as
+	 * it was subscribed to, wildcards included.
+	 * 
+	 * @param topic
+	 *            The topic, as subscribed to.
+	 * @param client
+	 *            The client to unsubscribe.
+	 * @return If the client was subscribed to this topic.
+	 */
+	public boolean unsubscribe(String topic, ConnectionToClient client) {
+		client.subscriptions.remove(topic);
+		return topics.remove(topic, client);
+	}
+
+	/**
+	 * Sends a serializable message to every client subscribed to a matching
+	 * topic (see {@code subscribe()}). A client receives it once, even if
+	 * several of its subscriptions match. Only the topic's branch of the
+	 * subscriptions is looked at, not every client.
+	 * 
+	 * <p>
+	 * Like {@code sendToAll()}, if connections send frames, the message is
+	 * encoded only once for all subscribers.
+	 * 
+	 * @param topic
+	 *            The topic to publish to, without wildcards.
+	 * @param msg
+	 *            The message to be sent.
+	 * @return {@code true} only if the message went through to all
+	 *         subscribers, also if there were none.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the topic has empty segments, or wildcards.
+	 */
+	public boolean publish(String topic, Serializable msg) {
+		Set<ConnectionToClient> subscribers = topics.match(topic);
+		if (!running())
+			return false;
+
+		return sendToEach(subscribers, msg);
+	}
+
+	/**
+	 * Returns the clients a message published to this topic would be sent
+	 * to.
+	 * 
+	 * @param topic
+	 *            The topic, without wildcards.
+	 * @return A new set of the subscribed clients.
+	 */
+	public Set<ConnectionToClient> getSubscribers(String topic) {
+		return topics.match(topic);
+	}
+
+	/**
+	 * Returns the live statistics of this server. The same instance is
+	 * returned on every call.
+	 * 
+	 * @return The metrics of this server.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the listening port of the server socket.
+	 * 
+	 * @return The listening port of the server socket.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	private volatile boolean started = false;
+
+	/**
+	 * Starts the server, and returns if it has successfully started.
+	 * 
+	 * <p>
+	 * If the server has been shut down once (dead) or running already, it will
+	 * not be started, and will return {@code false}.
+	 * 
+	 * @return If the server has been started successfully.
+	 * @return
+	 */
+	public boolean start() {
+		if (!isAlive() || running())
+			return false;
+
+		/*
+		 * double check to avoid unnecessary synchronization. (Saw it in
+		 * Effective Java, by Joshua Bloch)
+		 */
+		if (started)
+			return false;
+		synchronized (this) {
+			if (started)
+				return false;
+			started = true;
+		}
+
+		messages = new Inbox[orderedDispatch ? messageHandlingThreadCount : 1];
+		for (int i = 0; i < messages.length; i++)
+			messages[i] = new Inbox(messageQueueCapacity);
+
+		ServerSocket[] sockets = new ServerSocket[reusePort ? acceptorThreadCount : 1];
+		ServerSocketChannel unix = null;
+		DatagramChannel datagram = null;
+		try {
+			if (localName != null && localServers.putIfAbsent(localName, this) != null)
+				throw new IOException("Local name already in use: " + localName);
+			for (int i = 0; i < sockets.length; i++)
+				sockets[i] = openServerSocket();
+			if (unixSocketPath != null)
+				unix = UnixSocket.bind(unixSocketPath, backlog);
+			if (datagramPort >= 0)
+				datagram = DatagramChannel.open().bind(new InetSocketAddress(datagramPort));
+
+			if (selectorThreadCount > 0) {
+				eventLoops = new EventLoop[selectorThreadCount];
+				for (int i = 0; i < selectorThreadCount; i++)
+					eventLoops[i] = new EventLoop();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			if (localName != null)
+				localServers.remove(localName, this);
+			for (ServerSocket ss : sockets)
+				try {
+					if (ss != null)
+						ss.close();
+				} catch (IOException e1) {
+				}
+			closeUnixChannel(unix);
+			try {
+				if (datagram != null)
+					datagram.close();
+			} catch (IOException e1) {
+			}
+			return false;
+		}
+		serverSockets = sockets;
+		unixChannel = unix;
+		datagramChannel = datagram;
+
+		if (codec != null)
+			frameCodec = codec;
+		else if (eventLoops != null || compressionThreshold >= 0)
+			frameCodec = Frames.DEFAULT_CODEC;
+		if (compressionThreshold >= 0)
+			frameCodec = new CompressionCodec(frameCodec, compressionThreshold, compressionDictionaries);
+		datagramCodec = codec != null ? codec : Frames.DEFAULT_CODEC;
+
+		authentication = new ThreadPoolExecutor(authenticationThreadCount, authenticationThreadCount, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+				Threads.factory(virtualThreads, "Authentication thread"));
+		authentication.allowCoreThreadTimeOut(true);
+
+		running = true;
+
+		// selector threads never block on a single client, keep them on platform threads
+		if (eventLoops != null)
+			for (int i = 0; i < eventLoops.length; i++)
+				Threads.start(false, eventLoops[i], "Selector thread #" + i);
+
+		for (int i = 0; i < messageHandlingThreadCount; i++)
+			Threads.start(virtualThreads, new MessageHandling(messages[i % messages.length]),
+					"Received messages handler thread #" + i);
+
+		for (int i = 0; i < acceptorThreadCount; i++)
+			Threads.start(virtualThreads, new Acception(sockets[i % sockets.length], null),
+					"Client acception thread #" + i);
+		if (unix != null)
+			Threads.start(virtualThreads, new Acception(null, unix), "Unix socket acception thread");
+		if (datagram != null)
+			Threads.start(virtualThreads, new DatagramReceiving(datagram), "Datagram receiving thread");
+
+		if (heartbeatIntervalNanos > 0 || idleTimeoutNanos > 0) {
+			long shortest = heartbeatIntervalNanos == 0 ? idleTimeoutNanos
+					: idleTimeoutNanos == 0 ? heartbeatIntervalNanos
+							: Math.min(heartbeatIntervalNanos, idleTimeoutNanos);
+			// some slack on the deadlines, for far less wake ups
+			wheel = new TimingWheel(Math.max(TimeUnit.MILLISECONDS.toNanos(1), shortest / 32));
+			if (heartbeatIntervalNanos > 0)
+				// mostly idle; a thread is only held by a ping that can't be written
+				pinging = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+						Threads.factory(virtualThreads, "Pinging thread"));
+			Threads.start(false, new Heartbeat(), "Heartbeat thread");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Blocks the calling thread, until the server has been shut down or
+	 * unsynced.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread has been interrupted while waiting.
+	 */
+	public void sync() throws InterruptedException {
+		if (!running)
+			return;
+		synchronized (this) {
+			if (!running)
+				return;
+			wait();
+		}
+	}
+
+	/**
+	 * Blocks the calling thread for the given time, until the server has been
+	 * shut down or unsynced.
+	 * 
+	 * @param timeout
+	 *            The maximum amount of milliseconds to block.
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread has been interrupted while waiting.
+	 */
+	public void sync(int timeout) throws InterruptedException {
+		if (!running)
+			return;
+		synchronized (this) {
+			if (!running)
+				return;
+			wait(timeout);
+		}
+	}
+
+	/**
+	 * Unblocks all blocked threads, which called {@code sync()}.
+	 */
+	synchronized public void unsync() {
+		notifyAll();
+	}
+
+	/**
+	 * Stops accepting new connections, in-process and Unix domain ones
+	 * included (see {@code setLocalName()} and {@code setUnixSocketPath()}),
+	 * and clears the accept mechanism resources. The
+	 * existing connections are preserved. There is no way to accept again with
+	 * this instance, once stopped.
+	 * 
+	 * <p>
+	 * In case a user chooses to limit the number of accepted clients, they
+	 * should rather use {@code setClientLimit()} since old clients may
+	 * disconnect, and in turn allow new clients;
+	 */
+	public void stopAccepting() {
+		if (localName != null)
+			localServers.remove(localName, this);
+
+		ServerSocketChannel unix = unixChannel;
+		if (unix != null) {
+			unixChannel = null;
+			closeUnixChannel(unix);
+		}
+
+		ServerSocket[] sockets = serverSockets;
+		if (sockets == null)
+			return;
+
+		for (ServerSocket ss : sockets)
+			try {
+				ss.close();
+			} catch (IOException e) {
+			}
+		serverSockets = null;
+	}
+
+	/**
+	 * Rejects incoming connections, if the server reached the given limit. If
+	 * clients disconnects, new connections will be allowed again. To stop
+	 * accepting permanently use {@code stopAccepting()}. Use any negative to
+	 * allow infinite connections.
+	 * 
+	 * <p>
+	 * Note: Even if the connection will eventually be rejected, as it reached
+	 * the limit; it will still call {@code connectionInit()} (this has been
+	 * coded this way, not to block the client, as it waits some data in its
+	 * {@code connectionInit()}). The listeners will <i>not</i> be notified.
+	 * 
+	 * <p>
+	 * This method will only affect new connections. Setting the limit to lower
+	 * than currently connected clients, will only ensure not to accept new
+	 * until it reaches that number. Existing clients are preserved.
+	 */
+	public void setClientLimit(int limit) {
+		clientLimit = limit;
+	}
+
+	public int getClientLimit() {
+		return clientLimit;
 	}
 
 	/**
@@ -472,8 +1864,30 @@ public class Server {
 			unsync();
 		}
 
-		for (ConnectionToClient c : getClients())
+		// localShutDown() removes from clients, so iterate a copy
+		for (ConnectionToClient c : new ArrayList<>(getClients()))
 			c.localShutDown();
+
+		if (eventLoops != null)
+			for (EventLoop loop : eventLoops)
+				loop.selector.wakeup();
+
+		stopAccepting();
+		if (authentication != null)
+			authentication.shutdownNow();
+		if (pinging != null)
+			pinging.shutdownNow();
+
+		DatagramChannel datagram = datagramChannel;
+		if (datagram != null) {
+			datagramChannel = null;
+			try {
+				datagram.close();
+			} catch (IOException e) {
+			}
+		}
+
+		metrics.unregisterMBean();
 	}
 
 	/**
@@ -516,6 +1930,39 @@ public class Server {
 		listeners.remove(sl);
 	}
 
+	/**
+	 * Registers a handler for received messages of the given type, its
+	 * subclasses and implementations. Unlike a {@code ServerListener}, that
+	 * is offered every message, a handler is only called for its own type:
+	 * the handlers of each concrete message class are looked up once, and
+	 * cached.
+	 * 
+	 * <p>
+	 * Handlers are called on the message handling thread, with the message
+	 * returned by {@code messageReceivedInit()}, in the order they were
+	 * registered, before the listeners. Commands are not routed to handlers.
+	 * 
+	 * @param type
+	 *            The type of messages to handle.
+	 * @param handler
+	 *            The handler to register.
+	 */
+	public <T> void on(Class<T> type, ServerHandler<? super T> handler) {
+		routes.add(type, handler);
+	}
+
+	/**
+	 * Unregisters a handler, registered with {@code on()} for the same type.
+	 * 
+	 * @param type
+	 *            The type the handler was registered for.
+	 * @param handler
+	 *            The handler to remove.
+	 */
+	public <T> void off(Class<T> type, ServerHandler<? super T> handler) {
+		routes.remove(type, handler);
+	}
+
 	/**
 	 * Convenience method to force written objects on the stream, since objects
 	 * operate weirdly on ObjectOutputStreams.
@@ -526,30 +1973,133 @@ public class Server {
 	}
 
 	/*
-	 * Randomly picks ID numbers for newly connected clients.
+	 * Binds a listening socket to the port.
+	 */
+	private ServerSocket openServerSocket() throws IOException {
+		ServerSocket ss;
+		if (selectorThreadCount > 0) {
+			/*
+			 * accepting is still blocking; the channel is only needed so the
+			 * accepted sockets can later be registered with a selector.
+			 */
+			ss = ServerSocketChannel.open().socket();
+		} else if (sslContext != null) {
+			ss = sslContext.getServerSocketFactory().createServerSocket();
+		} else {
+			ss = new ServerSocket();
+		}
+
+		try {
+			if (reusePort)
+				ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			ss.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			ss.close();
+			throw e;
+		}
+		return ss;
+	}
+
+	/*
+	 * Closes a listening Unix domain channel, and deletes its socket file.
+	 */
+	private void closeUnixChannel(ServerSocketChannel unix) {
+		if (unix == null)
+			return;
+		try {
+			unix.close();
+		} catch (IOException e) {
+		}
+		try {
+			Files.deleteIfExists(unixSocketPath);
+		} catch (IOException e) {
+		}
+	}
+
+	/*
+	 * The inbox of the thread in charge of this client.
+	 */
+	private Inbox inbox(int id) {
+		if (messages.length == 1)
+			return messages[0];
+		return messages[spread(id, messages.length)];
+	}
+
+	/*
+	 * Maps an id to an index below size. Ids may be sequential or random, so
+	 * they are spread by Fibonacci hashing: the high bits of the product are
+	 * the well mixed ones, and are scaled to size rather than masked, as size
+	 * needn't be a power of two.
+	 */
+	static int spread(int id, int size) {
+		long hash = (id * 0x9E3779B9) & 0xFFFFFFFFL;
+		return (int) ((hash * size) >>> 32);
+	}
+
+	/*
+	 * Queues a received message, blocks while the inbox is full.
+	 */
+	private void enqueue(Message m) throws InterruptedException {
+		inbox(m.id).queue.put(m);
+	}
+
+	/*
+	 * Picks the ID number of a newly connected client, and reserves it until
+	 * the handshake releases it. Ids are handed out in sequence; once the
+	 * sequence wraps, ids in use or reserved by another handshake are skipped,
+	 * so registering the client can't collide after the id has been sent.
 	 */
-	private static Random rand = new Random();
+	private int allocateId() {
+		while (true) {
+			int id = nextClientId.incrementAndGet();
+			if (id == 0 || !reservedIds.add(id))
+				continue;
+
+			// checked after reserving: a handshake only releases its id once
+			// registered
+			if (!clients.containsKey(id))
+				return id;
+			reservedIds.remove(id);
+		}
+	}
 
 	/*
-	 * Takes care of accepting new clients.
+	 * Takes care of accepting new clients, either over TCP or on a Unix domain
+	 * socket; one of the two is null.
 	 */
 	private class Acception implements Runnable {
 
+		private final ServerSocket serverSocket;
+		private final ServerSocketChannel unixChannel;
+
+		Acception(ServerSocket serverSocket, ServerSocketChannel unixChannel) {
+			this.serverSocket = serverSocket;
+			this.unixChannel = unixChannel;
+		}
+
+		private boolean isOpen() {
+			return serverSocket != null ? !serverSocket.isClosed() : unixChannel.isOpen();
+		}
+
 		public void run() {
-			while (running() && !serverSocket.isClosed()) {
+			while (running() && isOpen()) {
 				Socket socket = null;
-				ObjectInputStream in = null;
-				ObjectOutputStream out = null;
 				try {
-					socket = serverSocket.accept();
-					out = new ObjectOutputStream(socket.getOutputStream());
-					in = new ObjectInputStream(socket.getInputStream());
-					authenticate(socket, in, out);
+					socket = serverSocket != null ? serverSocket.accept() : UnixSocket.accept(unixChannel);
+
+					// shed load before anything is allocated for this socket
+					if (pendingHandshakes.incrementAndGet() > maxPendingHandshakes) {
+						pendingHandshakes.decrementAndGet();
+						metrics.handshakeFailed();
+						socket.close();
+						continue;
+					}
+					authenticate(socket);
 
 				} catch (IOException e) {
 					try {
-						if (out != null)
-							out.close();
+						if (socket != null)
+							socket.close();
 					} catch (IOException e1) {
 					}
 				} catch (RuntimeException rte) {
@@ -560,87 +2110,231 @@ public class Server {
 				}
 			}
 		}
+	}
 
-		/*
-		 * Makes sure the client is actually "my client" implementation. Runs on
-		 * separate thread, since foreign unknown clients may not provide the
-		 * required information and may hang acception thread.
-		 */
-		private void authenticate(final Socket socket, final ObjectInputStream in, final ObjectOutputStream out) {
-			Thread authentication = new Thread("Authentication thread") {
-				public void run() {
-					if (!running())
-						return;
+	/*
+	 * Makes sure the client is actually "my client" implementation. Runs on
+	 * the authentication executor, since foreign unknown clients may not
+	 * provide the required information and may hang acception thread. Even
+	 * the streams are created there, as the ObjectInputStream blocks until
+	 * the client's stream header arrives.
+	 */
+	private void authenticate(final Socket socket) {
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					handshake(socket);
+				} finally {
+					pendingHandshakes.decrementAndGet();
+				}
+			}
+		};
+
+		try {
+			authentication.execute(task);
+		} catch (RejectedExecutionException e) {
+			// shut down meanwhile
+			pendingHandshakes.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e1) {
+			}
+		}
+	}
+
+	private void handshake(Socket socket) {
+		if (!running()) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			return;
+		}
+
+		ConnectionToClient ctc = null;
+		int id = 0;
+		boolean reserved = false;
+		ObjectInputStream in = null;
+		ObjectOutputStream out = null;
+		TlsChannel tls = null;
+
+		try {
+			socket.setSoTimeout(TIMEOUT); // don't let foreign
+											// clients
+											// hang too long.
+		} catch (SocketException e) {
+			e.printStackTrace();
+			try {
+				socket.close();
+			} catch (IOException e1) {
+			}
+			return;
+		}
+
+		try {
+			if (socket instanceof LocalSocket) {
+				out = ((LocalSocket) socket).getObjectOutput();
+				in = ((LocalSocket) socket).getObjectInput();
+			} else {
+				InputStream rawIn = socket.getInputStream();
+				OutputStream rawOut = socket.getOutputStream();
+				// Unix domain sockets stay on the host, see setUnixSocketPath()
+				if (sslContext != null && eventLoops != null && !(socket instanceof UnixSocket)) {
+					SSLEngine engine = sslContext.createSSLEngine();
+					engine.setUseClientMode(false);
+					tls = new TlsChannel(socket.getChannel(), engine);
+					tls.handshake();
+					rawIn = tls.getInputStream();
+					rawOut = tls.getOutputStream();
+				}
+
+				out = new ObjectOutputStream(metrics.countingOutputStream(rawOut));
+				in = new ObjectInputStream(metrics.countingInputStream(rawIn));
+			}
+
+			out.writeObject(ServerCommand.HANDSHAKE);
+			force(out);
+			Object handShake = in.readObject();
 
-					ConnectionToClient ctc = null;
-					int id = 0;
+			if (handShake == ClientCommand.HANDSHAKE) {
 
-					try {
-						socket.setSoTimeout(TIMEOUT); // don't let foreign
-														// clients
-														// hang too long.
-					} catch (SocketException e) {
-						e.printStackTrace();
-						return;
-					}
+				id = allocateId();
+				reserved = true;
 
-					try {
-						out.writeObject(ServerCommand.HANDSHAKE);
-						force(out);
-						Object handShake = in.readObject();
+				out.writeInt(id);
+				force(out);
 
-						if (handShake == ClientCommand.HANDSHAKE) {
+				ctc = connectionInit(id, socket, in, out);
+			}
+			// the id is reserved, so this only fails on the client limit
+			if (ctc != null && (clientLimit < 0 || clientLimit > clients.size())
+					&& clients.putIfAbsent(id, ctc) == null) {
+				reservedIds.remove(id);
+				reserved = false;
+				// in-process connections pass whole objects, never frames
+				if (frameCodec == null || socket instanceof LocalSocket) {
+					out.writeObject(ServerCommand.CONNECTED);
+					writeDatagramInfo(ctc, out);
+					force(out);
+				} else {
+					// no reset, nothing may follow but frames
+					out.writeObject(ServerCommand.CONNECTED_FRAMED);
+					out.writeInt(compressionThreshold);
+					writeDatagramInfo(ctc, out);
+					out.flush();
+					ctc.useFrames(frameCodec, tls);
+				}
+			} else {
+				// includes, handShake != ClientCommand.HANDSHAKE
+				if (reserved) {
+					reservedIds.remove(id);
+					reserved = false;
+				}
+				metrics.handshakeFailed();
+				if (!socket.isClosed()) {
+					out.writeObject(ServerCommand.REJECT_CONNECTION);
+					force(out);
+				}
+				socket.close();
+				return;
+			}
 
-							while (id == 0 || containsId(id))
-								id = rand.nextInt();
+		} catch (Throwable t) {
+			System.out.println(t);
+			metrics.handshakeFailed();
+			if (ctc != null)
+				clients.remove(id, ctc);
+			if (reserved)
+				reservedIds.remove(id);
+			try {
+				if (out != null && !socket.isClosed())
+					out.writeObject(ServerCommand.ERROR_CONNECTION);
+				socket.close();
+			} catch (IOException e) {
+			}
+			return;
+		}
 
-							out.writeInt(id);
-							force(out);
+		try {
+			socket.setSoTimeout(0);
+			// the reading thread keeps using the streams
+			if (socket instanceof UnixSocket && eventLoops == null)
+				((UnixSocket) socket).useBlocking();
+		} catch (IOException e) {
+		}
 
-							ctc = connectionInit(id, socket, in, out);
-						}
-						if (ctc != null && (clientLimit < 0 || clientLimit > clients.size())) {
-							clients.put(id, ctc);
-							out.writeObject(ServerCommand.CONNECTED);
-							force(out);
-						} else {
-							// includes, handShake != ClientCommand.HANDSHAKE
-							if (!socket.isClosed()) {
-								out.writeObject(ServerCommand.REJECT_CONNECTION);
-								force(out);
-							}
-							socket.close();
-							return;
-						}
+		metrics.handshakeCompleted();
+		ctc.localStart();
+		for (ServerListener sl : listeners.get())
+			sl.clientConnected(Server.this, ctc);
+	}
 
-					} catch (Throwable t) {
-						System.out.println(t);
-						try {
-							if (!socket.isClosed())
-								out.writeObject(ServerCommand.ERROR_CONNECTION);
-							in.close();
-							out.close();
-						} catch (IOException e) {
-						}
-						return;
-					}
+	/*
+	 * Tells the client the port of the side channel, -1 if none, followed by
+	 * its key.
+	 */
+	private void writeDatagramInfo(ConnectionToClient ctc, ObjectOutputStream out) throws IOException {
+		DatagramChannel datagram = datagramChannel;
+		if (datagram == null || ctc.socket instanceof LocalSocket) {
+			out.writeInt(-1);
+			return;
+		}
 
-					try {
-						socket.setSoTimeout(0);
-					} catch (SocketException e) {
-					}
+		byte[] key = Datagrams.newKey();
+		ctc.datagramSendMac = Datagrams.mac(key);
+		ctc.datagramReceiveMac = Datagrams.mac(key);
+		out.writeInt(((InetSocketAddress) datagram.getLocalAddress()).getPort());
+		out.write(key);
+	}
 
-					ctc.localStart();
-					for (ServerListener sl : listeners)
-						sl.clientConnected(Server.this, ctc);
-				}
-			};
+	/*
+	 * Receives the datagrams of all clients, see setDatagramPort().
+	 */
+	private class DatagramReceiving implements Runnable {
 
-			authentication.setDaemon(true);
-			authentication.start();
+		private final DatagramChannel channel;
 
+		DatagramReceiving(DatagramChannel channel) {
+			this.channel = channel;
 		}
 
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(Datagrams.MAX_LENGTH);
+			while (running() && channel.isOpen()) {
+				try {
+					buffer.clear();
+					SocketAddress from = channel.receive(buffer);
+					metrics.bytesReceived(buffer.position());
+					buffer.flip();
+					if (buffer.remaining() < Datagrams.HEADER_LENGTH)
+						continue;
+
+					ConnectionToClient ctc = clients.get(buffer.getInt(0));
+					Mac mac = ctc == null ? null : ctc.datagramReceiveMac;
+					if (mac == null || !Datagrams.verify(mac, Datagrams.TO_SERVER, buffer))
+						continue;
+					buffer.getInt();
+					long seq = buffer.getLong();
+					if (!Datagrams.inWindow(seq, ctc.lastDatagramSeq))
+						continue; // late, or twice
+					ctc.lastDatagramSeq = seq;
+					ctc.datagramAddress = from;
+
+					Object obj = Datagrams.decode(datagramCodec, buffer);
+					if (obj == null)
+						continue;
+					metrics.received(obj);
+					// a stale update is worthless, rather drop it than wait for room
+					inbox(ctc.clientId).queue.offer(new Message(obj, ctc.clientId));
+				} catch (ClosedChannelException e) {
+					break;
+				} catch (IOException | ClassNotFoundException e) {
+					// a corrupt datagram is dropped, like a lost one
+				} catch (RuntimeException rte) {
+					rte.printStackTrace();
+				}
+			}
+		}
 	}
 
 	/*
@@ -649,25 +2343,46 @@ public class Server {
 	 * command or message.
 	 */
 	private class MessageHandling implements Runnable {
+
+		private final Inbox inbox;
+
+		MessageHandling(Inbox inbox) {
+			this.inbox = inbox;
+		}
+
 		public void run() {
 			while (running())
 				try {
-					Message m = messages.take();
+					Message m = inbox.queue.take();
 					if (m == null)
 						continue;
+
+					// made room, let a stalled selector client continue
+					ConnectionToClient stalled = inbox.stalled.poll();
+					if (stalled != null)
+						stalled.eventLoop.resume(stalled);
+
+					metrics.getDispatchLatency().record(System.nanoTime() - m.enqueued);
+
 					if (m.msg instanceof Command) {
 						m.msg = commandReceivedInit(m.id, (Command) m.msg);
 
-						if (m.msg != null)
-							for (ServerListener sl : listeners)
-								sl.commandReceived(Server.this, getClient(m.id), (Command) m.msg);
+						if (m.msg != null) {
+							ConnectionToClient ctc = getClient(m.id);
+							for (ServerListener sl : listeners.get())
+								sl.commandReceived(Server.this, ctc, (Command) m.msg);
+						}
 
 					} else {
 						m.msg = messageReceivedInit(m.id, m.msg);
 
-						if (m.msg != null)
-							for (ServerListener sl : listeners)
-								sl.messageReceived(Server.this, getClient(m.id), m.msg);
+						if (m.msg != null) {
+							ConnectionToClient ctc = getClient(m.id);
+							for (ServerHandler<?> h : routes.get(m.msg.getClass()))
+								handle(h, ctc, m.msg);
+							for (ServerListener sl : listeners.get())
+								sl.messageReceived(Server.this, ctc, m.msg);
+						}
 					}
 				} catch (InterruptedException e) {
 				} catch (RuntimeException rte) {
@@ -678,6 +2393,116 @@ public class Server {
 				}
 		}
 
+		/*
+		 * The routes only hold handlers of a supertype of the message.
+		 */
+		@SuppressWarnings("unchecked")
+		private void handle(ServerHandler<?> handler, ConnectionToClient ctc, Object msg) {
+			((ServerHandler<Object>) handler).handle(Server.this, ctc, msg);
+		}
+
+	}
+
+	/*
+	 * Drives the timing wheel, pinging and shutting down idle clients.
+	 */
+	private class Heartbeat implements Runnable {
+
+		public void run() {
+			long tickMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wheel.tickNanos()));
+			while (running())
+				try {
+					Thread.sleep(tickMillis);
+					wheel.advance(System.nanoTime());
+				} catch (InterruptedException e) {
+				} catch (RuntimeException rte) {
+					rte.printStackTrace();
+				}
+		}
+	}
+
+	/*
+	 * A selector thread, multiplexing the reads (and the writes that could not
+	 * complete immediately) of many clients. Clients are assigned round-robin.
+	 */
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+
+		/*
+		 * channels may only be registered while the selector isn't blocked, so
+		 * new clients are handed over to the loop thread.
+		 */
+		private final Queue<ConnectionToClient> registrations;
+
+		/*
+		 * clients that stopped reading on a full inbox, and may continue.
+		 */
+		private final Queue<ConnectionToClient> resumptions;
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+			registrations = new ConcurrentLinkedQueue<>();
+			resumptions = new ConcurrentLinkedQueue<>();
+		}
+
+		void register(ConnectionToClient ctc) {
+			registrations.add(ctc);
+			selector.wakeup();
+		}
+
+		void resume(ConnectionToClient ctc) {
+			resumptions.add(ctc);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running()) {
+					selector.select();
+
+					ConnectionToClient ctc;
+					while ((ctc = registrations.poll()) != null)
+						ctc.register(selector);
+
+					while ((ctc = resumptions.poll()) != null) {
+						try {
+							ctc.readFrames();
+						} catch (Throwable t) {
+							t.printStackTrace();
+							ctc.localShutDown();
+						}
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+
+						ctc = (ConnectionToClient) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable())
+								ctc.readFrames();
+							if (key.isValid() && key.isWritable())
+								ctc.writePending();
+						} catch (Throwable t) {
+							// only this client is lost, not every one on the loop
+							t.printStackTrace();
+							ctc.localShutDown();
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
 	}
 
 	/**
@@ -695,6 +2520,84 @@ public class Server {
 		private volatile boolean localRunning;
 		private volatile boolean localAlive;
 
+		/*
+		 * Frame codec, null if the Object streams are used.
+		 */
+		private MessageCodec codec;
+		private DataInputStream frameIn;
+		private OutputStream frameOut;
+
+		/*
+		 * Selector driven state, only used when the server has selector
+		 * threads. Frames that could not be written at once wait in pending.
+		 */
+		private SocketChannel channel;
+		private EventLoop eventLoop;
+		private SelectionKey key;
+		private ByteBuffer readBuffer;
+		private ArrayDeque<Outgoing> pending;
+		private boolean framesStarted;
+
+		/*
+		 * TLS on top of the channel, null for plain connections.
+		 */
+		private TlsChannel tls;
+
+		/*
+		 * System.nanoTime() of the last read from the client, and of the last
+		 * ping sent to it.
+		 */
+		private volatile long lastRead;
+		private long lastPing;
+
+		/*
+		 * A decoded message, that did not fit into the full inbox. Reading is
+		 * suspended until it has been queued.
+		 */
+		private volatile Message stalledMessage;
+
+		/*
+		 * Guards the streams, when not driven by a selector. A lock rather than
+		 * a monitor, so heartbeats need not wait for it.
+		 */
+		private final ReentrantLock writeLock = new ReentrantLock();
+
+		/*
+		 * Whether a ping has been handed to a pinging thread, and not yet
+		 * written.
+		 */
+		private final AtomicBoolean pingInFlight = new AtomicBoolean();
+
+		/*
+		 * Asynchronous sends, when not driven by a selector. Drained by the
+		 * writer thread, started with the first asynchronous send.
+		 */
+		private ArrayBlockingQueue<Outgoing> outbox;
+		private Writing writing;
+		private Thread writer;
+		private int sendQueueCapacity;
+		private OverflowPolicy sendOverflowPolicy;
+		private int writeBatchSize;
+		private long writeLingerNanos;
+
+		/*
+		 * The topics this client is subscribed to, as given.
+		 */
+		private Set<String> subscriptions;
+
+		/*
+		 * The unreliable side channel: the keyed Macs of either direction,
+		 * null if the client has no side channel; where its datagrams come
+		 * from (null until the first arrives), and the sequence numbers of
+		 * either direction. The receiving Mac and the last received sequence
+		 * number are only used by the receiving thread.
+		 */
+		private volatile Mac datagramSendMac;
+		private volatile Mac datagramReceiveMac;
+		private volatile SocketAddress datagramAddress;
+		private AtomicLong datagramSeq;
+		private long lastDatagramSeq;
+
 		/**
 		 * Constructs a new instance of a client connection.
 		 * 
@@ -714,33 +2617,491 @@ public class Server {
 			this.socket = socket;
 			this.in = in;
 			this.out = out;
+			sendQueueCapacity = Server.this.sendQueueCapacity;
+			sendOverflowPolicy = Server.this.sendOverflowPolicy;
+			writeBatchSize = Server.this.writeBatchSize;
+			writeLingerNanos = Server.this.writeLingerNanos;
+			subscriptions = ConcurrentHashMap.newKeySet();
+			datagramSeq = new AtomicLong();
+			lastRead = lastPing = System.nanoTime();
 			localAlive = true;
 		}
 
-		private volatile boolean localStarted = false;
+		private volatile boolean localStarted = false;
+
+		private void localStart() {
+			if (!localAlive || localRunning)
+				return;
+
+			if (localStarted)
+				return;
+			synchronized (this) {
+				if (localStarted)
+					return;
+				started = true;
+				localRunning = true;
+			}
+
+			if (wheel != null)
+				wheel.schedule(this::expire, 0);
+
+			if (channel != null) {
+				eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+				eventLoop.register(this);
+				return;
+			}
+
+			Threads.start(virtualThreads, new Reading(), "Client: " + clientId + " reading thread");
+
+		}
+
+		/*
+		 * Called on the heartbeat thread, returns the nanoseconds until it
+		 * should be called again, or -1 once the client is gone.
+		 */
+		private long expire(long now) {
+			if (!localRunning)
+				return -1;
+
+			long idle = now - lastRead;
+			if (idleTimeoutNanos > 0 && idle >= idleTimeoutNanos) {
+				// the peer is presumably gone, don't block on a full socket
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				localShutDown();
+				return -1;
+			}
+
+			if (heartbeatIntervalNanos > 0 && idle >= heartbeatIntervalNanos
+					&& now - lastPing >= heartbeatIntervalNanos) {
+				ping();
+				lastPing = now;
+			}
+
+			long next = Long.MAX_VALUE;
+			if (idleTimeoutNanos > 0)
+				next = idleTimeoutNanos - idle;
+			if (heartbeatIntervalNanos > 0)
+				next = Math.min(next, heartbeatIntervalNanos - Math.min(idle, now - lastPing));
+			return Math.max(0, next);
+		}
+
+		/*
+		 * Sends a ping, never blocking the wheel thread: queued behind the
+		 * pending frames with a selector, or behind the sends of the writer
+		 * thread if there is one, otherwise written by a pinging thread unless
+		 * the stream is busy. A client that doesn't read is left to time out.
+		 */
+		private void ping() {
+			try {
+				if (channel != null) {
+					writeFrame(Frames.encode(codec, ServerCommand.PING), null);
+					fireSent(ServerCommand.PING);
+					return;
+				}
+
+				synchronized (this) {
+					// behind whatever the writer has queued
+					if (writer != null) {
+						Outgoing o = new Outgoing(ServerCommand.PING, null, new CompletableFuture<>());
+						if (!outbox.offer(o))
+							o.future.complete(false);
+						return;
+					}
+				}
+
+				// one at a time, a ping that can't be written waits for the reap
+				if (!pingInFlight.compareAndSet(false, true))
+					return;
+				try {
+					pinging.execute(this::writePing);
+				} catch (RejectedExecutionException e) {
+					pingInFlight.set(false);
+				}
+			} catch (IOException e) {
+			}
+		}
+
+		/*
+		 * Runs on a pinging thread.
+		 */
+		private void writePing() {
+			try {
+				// a stream busy writing is no idle one, skip rather than wait
+				if (!writeLock.tryLock())
+					return;
+				try {
+					writeBuffered(ServerCommand.PING, null);
+					flushStream();
+				} finally {
+					writeLock.unlock();
+				}
+				fireSent(ServerCommand.PING);
+			} catch (IOException e) {
+			} finally {
+				pingInFlight.set(false);
+			}
+		}
+
+		/*
+		 * Switches to frames, once the client has been told so. With selector
+		 * threads the channel becomes non-blocking, otherwise the raw socket
+		 * streams are used.
+		 */
+		private void useFrames(MessageCodec codec, TlsChannel tls) throws IOException {
+			this.codec = codec;
+			if (eventLoops != null) {
+				this.tls = tls;
+				readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+				pending = new ArrayDeque<>();
+				channel = socket.getChannel();
+				channel.configureBlocking(false);
+				// the handshake was the last use of the streams
+				if (socket instanceof UnixSocket)
+					((UnixSocket) socket).releaseSelectors();
+			} else {
+				frameIn = new DataInputStream(
+						new BufferedInputStream(metrics.countingInputStream(socket.getInputStream())));
+				frameOut = new BufferedOutputStream(metrics.countingOutputStream(socket.getOutputStream()));
+			}
+		}
+
+		/*
+		 * Called on the selector thread.
+		 */
+		private void register(Selector selector) {
+			synchronized (pending) {
+				if (!localRunning)
+					return;
+				try {
+					key = channel.register(selector, interestOps(), this);
+				} catch (IOException e) {
+					localShutDown();
+					return;
+				}
+				// frames that arrived with the handshake, already off the socket
+				if (tls != null && tls.hasBufferedInput())
+					eventLoop.resume(this);
+			}
+		}
+
+		/*
+		 * Must hold the pending lock.
+		 */
+		private int interestOps() {
+			int ops = stalledMessage == null ? SelectionKey.OP_READ : 0;
+			if (pending.isEmpty() && (tls == null || !tls.hasPendingOutput()))
+				return ops;
+			return ops | SelectionKey.OP_WRITE;
+		}
+
+		private void updateInterestOps() {
+			synchronized (pending) {
+				if (key != null && key.isValid())
+					key.interestOps(interestOps());
+			}
+		}
+
+		/*
+		 * Queues a decoded message, or suspends reading if the inbox is full.
+		 * Called on the selector thread.
+		 */
+		private boolean offer(Message m) {
+			Inbox inbox = inbox(clientId);
+			if (inbox.queue.offer(m))
+				return true;
+
+			stalledMessage = m;
+			updateInterestOps();
+			inbox.stalled.add(this);
+
+			// the inbox may have been drained meanwhile, nobody would resume us
+			if (inbox.queue.remainingCapacity() > 0 && inbox.stalled.remove(this))
+				eventLoop.resume(this);
+			return false;
+		}
+
+		/*
+		 * Reads whatever is available, and queues every complete frame. If
+		 * reading has been suspended, the stalled message and the frames
+		 * already buffered are queued first. Called on the selector thread.
+		 */
+		private void readFrames() {
+			if (!localRunning)
+				return;
+
+			try {
+				Message stalled = stalledMessage;
+				if (stalled != null) {
+					if (!inbox(clientId).queue.offer(stalled)) {
+						offer(stalled); // stall again
+						return;
+					}
+					stalledMessage = null;
+					updateInterestOps();
+				} else {
+					int n = tls == null ? channel.read(readBuffer) : tls.read(readBuffer);
+					if (n < 0) {
+						localShutDown();
+						return;
+					}
+					if (n > 0)
+						lastRead = System.nanoTime();
+					metrics.bytesReceived(n);
+				}
+
+				readBuffer.flip();
+
+				/*
+				 * the client may have reset its Object stream after the
+				 * handshake, which leaves a marker before the first frame.
+				 */
+				while (!framesStarted && readBuffer.hasRemaining()) {
+					if (readBuffer.get(readBuffer.position()) != ObjectStreamConstants.TC_RESET)
+						framesStarted = true;
+					else
+						readBuffer.get();
+				}
+
+				while (readBuffer.remaining() >= 4) {
+					int length = readBuffer.getInt(readBuffer.position());
+					Frames.checkLength(length);
+					if (readBuffer.remaining() < length + 4)
+						break;
+
+					Object obj = Frames.decode(codec, readBuffer.array(), readBuffer.position() + 4, length);
+					readBuffer.position(readBuffer.position() + length + 4);
+					if (obj == ClientCommand.PONG)
+						continue;
+					metrics.received(obj);
+					if (!offer(new Message(obj, clientId)))
+						break;
+				}
+				readBuffer.compact();
+
+				/*
+				 * grows only once full, doubling up to the frame length: the
+				 * header is the peer's claim, the bytes received so far are
+				 * what it actually spent.
+				 */
+				if (readBuffer.position() >= 4) {
+					int needed = readBuffer.getInt(0) + 4;
+					if (needed > readBuffer.capacity() && !readBuffer.hasRemaining()) {
+						ByteBuffer larger = ByteBuffer.allocate((int) Math.min(needed, 2L * readBuffer.capacity()));
+						readBuffer.flip();
+						larger.put(readBuffer);
+						readBuffer = larger;
+					}
+				} else if (readBuffer.capacity() > INITIAL_READ_BUFFER) {
+					ByteBuffer smaller = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+					readBuffer.flip();
+					smaller.put(readBuffer);
+					readBuffer = smaller;
+				}
+
+				if (tls != null) {
+					// decrypted leftovers won't wake the selector up
+					if (stalledMessage == null && tls.hasBufferedInput())
+						eventLoop.resume(this);
+					// answers to post handshake messages
+					if (tls.hasPendingOutput())
+						updateInterestOps();
+				}
+			} catch (IOException | ClassNotFoundException e) {
+				try {
+					write(ServerCommand.ERROR_CONNECTION);
+				} catch (IOException e1) {
+				}
+				localShutDown();
+			}
+		}
+
+		/*
+		 * Writes as much of the pending frames as the socket accepts. Called
+		 * on the selector thread.
+		 */
+		private void writePending() {
+			synchronized (pending) {
+				try {
+					// gathering write, all pending frames in one call
+					ByteBuffer[] frames = new ByteBuffer[pending.size()];
+					int i = 0;
+					for (Outgoing o : pending)
+						frames[i++] = o.frame;
+					metrics.bytesSent(tls == null ? channel.write(frames) : tls.write(frames));
+
+					while (!pending.isEmpty() && !pending.peek().frame.hasRemaining()) {
+						Outgoing o = pending.poll();
+						if (o.future != null)
+							o.future.complete(true);
+					}
+					pending.notifyAll(); // room for blocked senders
 
-		private void localStart() {
-			if (!localAlive || localRunning)
+					if (pending.isEmpty())
+						key.interestOps(interestOps()); // keeps OP_WRITE while TLS has more
+				} catch (IOException e) {
+					localShutDown();
+				}
+			}
+		}
+
+		/*
+		 * Writes a single object, to the Object stream or as a frame, depending
+		 * on the connection type.
+		 */
+		private void write(Object msg) throws IOException {
+			if (channel != null) {
+				writeFrame(Frames.encode(codec, msg), null);
 				return;
+			}
 
-			if (localStarted)
+			writeLock.lock();
+			try {
+				writeBuffered(msg, null);
+				flushStream();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		/*
+		 * Writes to the stream without flushing, a frame if already encoded.
+		 * Callers must hold the writeLock.
+		 */
+		private void writeBuffered(Object msg, ByteBuffer frame) throws IOException {
+			if (codec == null) {
+				out.writeObject(msg);
+				out.reset();
 				return;
+			}
+
+			if (frame == null)
+				frame = Frames.encode(codec, msg);
+			frameOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+
+		private void flushStream() throws IOException {
+			if (codec == null)
+				out.flush();
+			else
+				frameOut.flush();
+		}
+
+		/*
+		 * Writes whatever the writer thread has not gotten to yet, in order,
+		 * before disconnecting: the batch it holds, then the queue. The writer
+		 * is stopped first, so nothing overtakes its batch.
+		 */
+		private void writeQueued() throws IOException {
+			Writing w;
+			Thread t;
 			synchronized (this) {
-				if (localStarted)
+				if (outbox == null)
 					return;
-				started = true;
-				localRunning = true;
+				w = writing;
+				t = writer;
+			}
+
+			w.stop(t);
+			List<Outgoing> queued = new ArrayList<>(w.batch);
+			w.batch.clear();
+			try {
+				writeLock.lock();
+				try {
+					outbox.drainTo(queued);
+					for (Outgoing o : queued)
+						writeBuffered(o.msg, o.frame);
+					flushStream();
+				} finally {
+					writeLock.unlock();
+				}
+			} catch (IOException e) {
+				for (Outgoing o : queued)
+					o.future.complete(false);
+				throw e;
+			}
+			for (Outgoing o : queued) {
+				fireSent(o.msg);
+				o.future.complete(true);
+			}
+		}
+
+		/*
+		 * Whether all sends go through the writer thread, to be coalesced.
+		 */
+		private boolean batching() {
+			return channel == null && (writeBatchSize > 1 || writeLingerNanos > 0);
+		}
+
+		/*
+		 * Writes an encoded frame. The frame's position is advanced, so shared
+		 * frames must be duplicated. With a selector, the frame may be queued;
+		 * an asynchronous send passes its future, which is bound by the queue
+		 * capacity and completed once written.
+		 */
+		private void writeFrame(ByteBuffer frame, CompletableFuture<Boolean> future) throws IOException {
+			if (channel == null) {
+				writeLock.lock();
+				try {
+					Frames.write(frameOut, frame);
+				} finally {
+					writeLock.unlock();
+				}
+				return;
 			}
 
-			Thread read = new Thread(new Reading(), "Client: " + clientId + " reading thread");
-			read.setDaemon(true);
-			read.start();
+			synchronized (pending) {
+				if (future != null && pending.size() >= sendQueueCapacity) {
+					if (sendOverflowPolicy == OverflowPolicy.DROP) {
+						future.complete(false);
+						return;
+					}
+					if (sendOverflowPolicy == OverflowPolicy.DISCONNECT) {
+						future.complete(false);
+						localShutDown();
+						return;
+					}
+					try {
+						while (pending.size() >= sendQueueCapacity && localRunning)
+							pending.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						future.complete(false);
+						return;
+					}
+					if (!channel.isOpen()) {
+						future.complete(false);
+						return;
+					}
+				}
 
+				if (pending.isEmpty()) {
+					metrics.bytesSent(tls == null ? channel.write(frame) : tls.write(frame));
+					// with TLS, the frame stays pending until it has been sent
+					if (!frame.hasRemaining() && (tls == null || !tls.hasPendingOutput())) {
+						if (future != null)
+							future.complete(true);
+						return;
+					}
+				}
+				pending.add(new Outgoing(null, frame, future));
+				if (key != null) {
+					key.interestOps(interestOps());
+					eventLoop.selector.wakeup();
+				}
+			}
 		}
 
 		/**
 		 * Returns the clients id for this connection.
 		 * 
+		 * <p>
+		 * Ids are handed out in sequence, 1, 2, 3 and so on, skipping ids still
+		 * in use once the sequence wraps. They are predictable, so they identify
+		 * a connection but must never serve as a secret or proof of identity.
+		 * 
 		 * @return The clients id for this connection.
 		 */
 		public int getClientId() {
@@ -774,6 +3135,31 @@ public class Server {
 			return socket;
 		}
 
+		/**
+		 * Returns the TLS session of this connection, if the server uses TLS
+		 * (see {@linkplain Server#setSSLContext}). E.g. the peer certificates,
+		 * when clients authenticate.
+		 * 
+		 * @return The TLS session, or {@code null} for a plain connection.
+		 */
+		public SSLSession getSSLSession() {
+			if (tls != null)
+				return tls.getSession();
+			if (socket instanceof SSLSocket)
+				return ((SSLSocket) socket).getSession();
+			return null;
+		}
+
+		/**
+		 * Returns the topics this client is subscribed to, see
+		 * {@linkplain Server#subscribe}.
+		 * 
+		 * @return An unmodifiable view of the subscribed topics.
+		 */
+		public Set<String> getTopics() {
+			return Collections.unmodifiableSet(subscriptions);
+		}
+
 		/**
 		 * Returns if the client is currently running. This may be changed
 		 * either by the {@code shutDown()} or {@code localShutDown()} methods,
@@ -800,17 +3186,85 @@ public class Server {
 			if (msg == null)
 				return false;
 
+			if (batching())
+				return queued(new Outgoing(msg, null, new CompletableFuture<>()));
+
 			try {
-				out.writeObject(msg);
-				force(out);
+				write(msg);
+				fireSent(msg);
+				return true;
+			} catch (IOException e) {
+				localShutDown();
+				return false;
+			}
+		}
 
-				if (msg instanceof Command)
-					for (ServerListener sl : listeners)
-						sl.commandSent(Server.this, this, (Command) msg);
-				else
-					for (ServerListener sl : listeners)
-						sl.messageSent(Server.this, this, msg);
+		/**
+		 * Sends given serializable object to this client over the unreliable
+		 * side channel (see {@linkplain Server#setDatagramPort}), as a single
+		 * datagram. It may be lost, or dropped if a later one arrives first,
+		 * but never waits behind other messages, nor holds them up.
+		 * 
+		 * <p>
+		 * Nothing can be sent until a first datagram from the client has
+		 * arrived, telling where it is. In-process clients are sent the
+		 * message like any other.
+		 * 
+		 * @param msg
+		 *            The message to be sent, may be a command too.
+		 * @return If the datagram has been sent; {@code false} if there is no
+		 *         side channel, or it is not known yet where the client is.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             If the message is too large for a single datagram.
+		 */
+		protected boolean sendUnreliable(Serializable msg) {
+			if (!localRunning || msg == null)
+				return false;
+			if (socket instanceof LocalSocket)
+				return send(msg);
+
+			DatagramChannel datagram = datagramChannel;
+			SocketAddress address = datagramAddress;
+			if (datagram == null || address == null || datagramSendMac == null)
+				return false;
+
+			msg = sendInit(msg);
+			if (msg == null)
+				return false;
+
+			try {
+				metrics.bytesSent(datagram.send(
+						Datagrams.encode(datagramCodec, datagramSendMac, Datagrams.TO_CLIENT, clientId,
+								datagramSeq.incrementAndGet(), msg),
+						address));
+				fireSent(msg);
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
 
+		/*
+		 * Sends a frame already encoded for a broadcast, bypassing sendInit().
+		 */
+		private boolean sendEncoded(Serializable msg, ByteBuffer frame) {
+			if (!localRunning || socket.isClosed())
+				return false;
+
+			// an in-process connection, that takes the message itself
+			if (codec == null)
+				frame = null;
+
+			if (batching())
+				return queued(new Outgoing(msg, frame == null ? null : frame.duplicate(), new CompletableFuture<>()));
+
+			try {
+				if (frame == null)
+					write(msg);
+				else
+					writeFrame(frame.duplicate(), null);
+				fireSent(msg);
 				return true;
 			} catch (IOException e) {
 				localShutDown();
@@ -818,6 +3272,144 @@ public class Server {
 			}
 		}
 
+		/**
+		 * Sends given serializable object to this client, without waiting for
+		 * it to be written. The message is queued, and written in order by a
+		 * writer thread of this connection (or by the selector thread, if the
+		 * server has selector threads). So a slow client only delays its own
+		 * messages, rather than the sending thread.
+		 * 
+		 * <p>
+		 * The queue is bound by {@linkplain Server#setSendQueueCapacity}; when
+		 * full, the {@linkplain Server#setSendOverflowPolicy} applies.
+		 * {@code sendInit()} is called on the calling thread. Messages sent
+		 * with {@code send()} may overtake queued messages, unless the server
+		 * has selector threads.
+		 * 
+		 * @param msg
+		 *            The message to be sent, may be a command too.
+		 * @return A future completing with {@code true} once the message has
+		 *         been written, or {@code false} if it could not be sent.
+		 */
+		protected CompletableFuture<Boolean> sendAsync(Serializable msg) {
+			CompletableFuture<Boolean> future = new CompletableFuture<>();
+			if (!localRunning || socket.isClosed() || msg == null) {
+				future.complete(false);
+				return future;
+			}
+
+			msg = sendInit(msg);
+			if (msg == null) {
+				future.complete(false);
+				return future;
+			}
+
+			try {
+				if (channel != null) {
+					writeFrame(Frames.encode(codec, msg), future);
+					fireSent(msg);
+				} else {
+					queue(new Outgoing(msg, null, future));
+				}
+			} catch (IOException e) {
+				future.complete(false);
+				localShutDown();
+			}
+			return future;
+		}
+
+		/**
+		 * Answers a {@linkplain Request} received from this client, completing
+		 * the future the client got from {@code Client.request()}. Replies may
+		 * be sent in any order, and from any thread.
+		 * 
+		 * @param request
+		 *            The request being answered.
+		 * @param response
+		 *            The reply, handed to the client's future.
+		 * @return If the reply has been sent successfully.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             If the connection uses frames, and the reply is itself a
+		 *             {@code Request} or {@code Response}; envelopes can't be
+		 *             nested.
+		 */
+		public boolean reply(Request request, Serializable response) {
+			return send(new Response(request.getId(), response));
+		}
+
+		/*
+		 * Queues a synchronous send, and returns whether it has been queued.
+		 */
+		private boolean queued(Outgoing o) {
+			queue(o);
+			return !o.future.isDone() || o.future.getNow(false);
+		}
+
+		private void failQueued() {
+			Outgoing o;
+			while ((o = outbox.poll()) != null)
+				o.future.complete(false);
+		}
+
+		private synchronized void startWriter() {
+			if (outbox == null) {
+				outbox = new ArrayBlockingQueue<>(sendQueueCapacity);
+				writing = new Writing();
+				writer = Threads.start(virtualThreads, writing, "Client: " + clientId + " writing thread");
+			}
+		}
+
+		/*
+		 * Hands an asynchronous send to the writer thread.
+		 */
+		private void queue(Outgoing o) {
+			startWriter();
+
+			if (outbox.offer(o))
+				return;
+
+			switch (sendOverflowPolicy) {
+			case DROP:
+				o.future.complete(false);
+				break;
+			case DISCONNECT:
+				o.future.complete(false);
+				// too slow to keep up, don't block draining the queue into a
+				// full socket
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				localShutDown();
+				break;
+			case BLOCK:
+				try {
+					outbox.put(o);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					o.future.complete(false);
+				}
+				break;
+			}
+
+			// the writer may have quit meanwhile
+			if (!localRunning && outbox.remove(o))
+				o.future.complete(false);
+		}
+
+		private void fireSent(Serializable msg) {
+			metrics.sent(msg);
+			if (msg == ServerCommand.PING)
+				return;
+			if (msg instanceof Command)
+				for (ServerListener sl : listeners.get())
+					sl.commandSent(Server.this, this, (Command) msg);
+			else
+				for (ServerListener sl : listeners.get())
+					sl.messageSent(Server.this, this, msg);
+		}
+
 		/**
 		 * A subclass may work with an object asked to send, here (e.g. encode).
 		 * Only the returned object will be sent. Returning {@code null} will
@@ -861,14 +3453,35 @@ public class Server {
 				localAlive = false;
 			}
 
+			for (String topic : subscriptions)
+				unsubscribe(topic, this);
+
 			try {
-				if (!socket.isClosed())
-					out.writeObject(ServerCommand.DISCONNECTED);
+				if (!socket.isClosed()) {
+					writeQueued();
+					write(ServerCommand.DISCONNECTED);
+				}
 			} catch (IOException e) {
 			}
 			try {
-				in.close();
-				out.close();
+				if (channel != null) {
+					if (tls != null) {
+						synchronized (pending) {
+							tls.close();
+						}
+					}
+					channel.close();
+					synchronized (pending) {
+						for (Outgoing o : pending)
+							if (o.future != null)
+								o.future.complete(false);
+						pending.clear();
+						pending.notifyAll();
+					}
+				} else {
+					in.close();
+					out.close();
+				}
 			} catch (IOException e) {
 			}
 
@@ -879,9 +3492,16 @@ public class Server {
 			boolean init = localRunning;
 
 			localRunning = false;
+			synchronized (this) {
+				if (writer != null) {
+					writer.interrupt();
+					// sent after the queue has been written
+					failQueued();
+				}
+			}
 			if (init) {
 				disconnectionInit();
-				for (ServerListener sl : listeners)
+				for (ServerListener sl : listeners.get())
 					sl.clientDisconnected(Server.this, this);
 			}
 
@@ -901,24 +3521,36 @@ public class Server {
 
 			public void run() {
 				try {
+					if (codec != null) {
+						try {
+							Frames.skipResets(frameIn);
+						} catch (IOException e) {
+							localShutDown();
+							return;
+						}
+					}
+
 					while (localRunning()) {
 						Object obj = null;
 						try {
-							obj = in.readObject();
+							obj = codec == null ? in.readObject() : Frames.read(codec, frameIn);
 						} catch (IOException | ClassNotFoundException e) {
 							try {
-								if (!socket.isClosed()) {
-									out.writeObject(ServerCommand.ERROR_CONNECTION);
-									force(out);
-								}
+								if (!socket.isClosed())
+									write(ServerCommand.ERROR_CONNECTION);
 							} catch (IOException e1) {
 							}
 							localShutDown();
 							break;
 						}
 
+						lastRead = System.nanoTime();
+						if (obj == ClientCommand.PONG)
+							continue;
+
 						try {
-							messages.put(new Message(obj, clientId));
+							metrics.received(obj);
+							enqueue(new Message(obj, clientId));
 						} catch (InterruptedException e) {
 						}
 
@@ -932,22 +3564,164 @@ public class Server {
 			}
 		}
 
+		/*
+		 * Writes the asynchronous sends, when not driven by a selector.
+		 */
+		private class Writing implements Runnable {
+
+			private final List<Outgoing> batch = new ArrayList<>();
+
+			/*
+			 * Guarded by this. The writer is only interrupted while waiting for
+			 * sends, never while writing, which would close an interruptible
+			 * channel. Once stopped, the batch and queue are left to
+			 * writeQueued().
+			 */
+			private boolean waiting;
+			private boolean stopping;
+
+			public void run() {
+				try {
+					while (true) {
+						synchronized (this) {
+							if (stopping || !localRunning())
+								break;
+							waiting = true;
+						}
+
+						batch.add(outbox.take());
+						outbox.drainTo(batch, writeBatchSize - batch.size());
+
+						if (writeLingerNanos > 0) {
+							long deadline = System.nanoTime() + writeLingerNanos;
+							while (batch.size() < writeBatchSize) {
+								Outgoing o = outbox.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+								if (o == null)
+									break;
+								batch.add(o);
+								outbox.drainTo(batch, writeBatchSize - batch.size());
+							}
+						}
+
+						synchronized (this) {
+							waiting = false;
+							// stopped right after taking the batch
+							if (Thread.interrupted())
+								break;
+						}
+
+						try {
+							writeLock.lock();
+							try {
+								for (Outgoing o : batch)
+									writeBuffered(o.msg, o.frame);
+								flushStream();
+							} finally {
+								writeLock.unlock();
+							}
+							for (Outgoing o : batch) {
+								fireSent(o.msg);
+								o.future.complete(true);
+							}
+							batch.clear();
+						} catch (IOException e) {
+							for (Outgoing o : batch)
+								o.future.complete(false);
+							batch.clear();
+							localShutDown();
+						}
+					}
+				} catch (InterruptedException e) {
+				} catch (RuntimeException rte) {
+					rte.printStackTrace();
+					localShutDown();
+				} finally {
+					synchronized (this) {
+						if (!stopping) {
+							for (Outgoing o : batch)
+								o.future.complete(false);
+							batch.clear();
+							failQueued();
+						}
+					}
+				}
+			}
+
+			/*
+			 * Stops the writer and waits for it to quit, unless called by the
+			 * writer itself.
+			 */
+			void stop(Thread thread) {
+				synchronized (this) {
+					stopping = true;
+					if (waiting)
+						thread.interrupt();
+				}
+				if (Thread.currentThread() == thread)
+					return;
+
+				boolean interrupted = false;
+				while (thread.isAlive()) {
+					try {
+						thread.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+
 		@Override
 		protected void finalize() {
 			localShutDown();
 		}
 	}
 
+	/*
+	 * A message waiting to be written. Queued for the writer thread as an
+	 * object, or for the selector as an encoded frame. The future is null
+	 * for synchronous sends.
+	 */
+	private static class Outgoing {
+		final Serializable msg;
+		final ByteBuffer frame;
+		final CompletableFuture<Boolean> future;
+
+		Outgoing(Serializable msg, ByteBuffer frame, CompletableFuture<Boolean> future) {
+			this.msg = msg;
+			this.frame = frame;
+			this.future = future;
+		}
+	}
+
+	/*
+	 * Received messages waiting to be handled, and the selector driven clients
+	 * waiting for room in it.
+	 */
+	private static class Inbox {
+		final LinkedBlockingQueue<Message> queue;
+		final Queue<ConnectionToClient> stalled;
+
+		Inbox(int capacity) {
+			queue = new LinkedBlockingQueue<>(capacity);
+			stalled = new ConcurrentLinkedQueue<>();
+		}
+	}
+
 	/*
 	 * A simple wrapper class, for server received messages.
 	 */
 	private static class Message {
 		Object msg;
 		int id;
+		final long enqueued;
 
 		Message(Object msg, int id) {
 			this.msg = msg;
 			this.id = id;
+			enqueued = System.nanoTime();
 		}
 	}
 
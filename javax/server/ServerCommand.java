@@ -1,5 +1,5 @@
 package javax.server;
 
 public enum ServerCommand implements Command {
-	HANDSHAKE, CONNECTED, ERROR_CONNECTION, DISCONNECTED, REJECT_CONNECTION
+	HANDSHAKE, CONNECTED, ERROR_CONNECTION, DISCONNECTED, REJECT_CONNECTION, CONNECTED_FRAMED, PING
 }
@@ -0,0 +1,19 @@
+package javax.server;
+
+import javax.server.Server.ConnectionToClient;
+
+/**
+ * Handles received messages of a single type, registered with
+ * {@linkplain Server#on(Class, ServerHandler)}.
+ * 
+ * @author Mordechai Meisels
+ *
+ * @param <T>
+ *            The type of messages handled.
+ */
+@FunctionalInterface
+public interface ServerHandler<T> {
+
+	public void handle(Server server, ConnectionToClient client, T msg);
+
+}
@@ -0,0 +1,394 @@
+package javax.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live statistics of a {@linkplain Server}: message and byte throughput,
+ * per-command counts, handshake outcomes, the depth of the received message
+ * queue and a histogram of the time messages wait in it before being handed
+ * to the listeners.
+ * 
+ * <p>
+ * All counters are cumulative since the server was constructed (or since the
+ * last {@code reset()}), and are updated without locking, so they may be read
+ * at any time from any thread. Every server has a single instance, returned by
+ * {@linkplain Server#getMetrics()}.
+ * 
+ * <p>
+ * The metrics can be published to JMX by invoking {@code registerMBean()}.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+	private final Server server;
+
+	private final LongAdder messagesReceived;
+	private final LongAdder messagesSent;
+	private final LongAdder bytesReceived;
+	private final LongAdder bytesSent;
+	private final LongAdder handshakesCompleted;
+	private final LongAdder handshakeFailures;
+
+	/*
+	 * Keyed by commandName(), so the key set stays small.
+	 */
+	private final Map<String, LongAdder> commandsReceived;
+	private final Map<String, LongAdder> commandsSent;
+
+	private final LatencyHistogram dispatchLatency;
+
+	/*
+	 * null if not registered.
+	 */
+	private volatile ObjectName objectName;
+
+	ServerMetrics(Server server) {
+		this.server = server;
+		messagesReceived = new LongAdder();
+		messagesSent = new LongAdder();
+		bytesReceived = new LongAdder();
+		bytesSent = new LongAdder();
+		handshakesCompleted = new LongAdder();
+		handshakeFailures = new LongAdder();
+		commandsReceived = new ConcurrentHashMap<>();
+		commandsSent = new ConcurrentHashMap<>();
+		dispatchLatency = new LatencyHistogram();
+	}
+
+	/**
+	 * Returns the server these metrics belong to.
+	 * 
+	 * @return The server.
+	 */
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * Returns the amount of received messages, commands included.
+	 * 
+	 * @return The amount of received messages.
+	 */
+	@Override
+	public long getMessagesReceived() {
+		return messagesReceived.sum();
+	}
+
+	/**
+	 * Returns the amount of sent messages, commands included.
+	 * 
+	 * @return The amount of sent messages.
+	 */
+	@Override
+	public long getMessagesSent() {
+		return messagesSent.sum();
+	}
+
+	/**
+	 * Returns the amount of bytes read from all client sockets, handshakes
+	 * included.
+	 * 
+	 * @return The amount of bytes read.
+	 */
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	/**
+	 * Returns the amount of bytes written to all client sockets, handshakes
+	 * included.
+	 * 
+	 * @return The amount of bytes written.
+	 */
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	/**
+	 * Returns the amount of received commands, by command name (e.g.
+	 * {@code "ClientCommand.DISCONNECT"}).
+	 * 
+	 * @return A snapshot of the received command counts.
+	 */
+	@Override
+	public Map<String, Long> getCommandsReceived() {
+		return snapshot(commandsReceived);
+	}
+
+	/**
+	 * Returns the amount of sent commands, by command name (e.g.
+	 * {@code "ServerCommand.CONNECTED"}).
+	 * 
+	 * @return A snapshot of the sent command counts.
+	 */
+	@Override
+	public Map<String, Long> getCommandsSent() {
+		return snapshot(commandsSent);
+	}
+
+	/**
+	 * Returns the amount of currently connected clients.
+	 * 
+	 * @return The amount of connected clients.
+	 */
+	@Override
+	public int getActiveConnections() {
+		return server.getClients().size();
+	}
+
+	/**
+	 * Returns the amount of received messages currently waiting to be
+	 * handled.
+	 * 
+	 * @return The amount of queued messages.
+	 * 
+	 * @see Server#getMessageQueueDepth()
+	 */
+	@Override
+	public int getMessageQueueDepth() {
+		return server.getMessageQueueDepth();
+	}
+
+	/**
+	 * Returns the amount of accepted sockets waiting for, or in the middle of,
+	 * their handshake.
+	 * 
+	 * @return The amount of pending handshakes.
+	 * 
+	 * @see Server#getPendingHandshakeCount()
+	 */
+	@Override
+	public int getPendingHandshakes() {
+		return server.getPendingHandshakeCount();
+	}
+
+	/**
+	 * Returns the amount of clients that successfully connected.
+	 * 
+	 * @return The amount of completed handshakes.
+	 */
+	@Override
+	public long getHandshakesCompleted() {
+		return handshakesCompleted.sum();
+	}
+
+	/**
+	 * Returns the amount of connections that were rejected, shed because of
+	 * too many pending handshakes, or failed during the handshake.
+	 * 
+	 * @return The amount of failed handshakes.
+	 */
+	@Override
+	public long getHandshakeFailures() {
+		return handshakeFailures.sum();
+	}
+
+	/**
+	 * Returns the histogram of the time received messages waited in the
+	 * message queue until handed to the listeners, in nanoseconds.
+	 * 
+	 * @return The dispatch latency histogram.
+	 */
+	public LatencyHistogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	@Override
+	public long getDispatchCount() {
+		return dispatchLatency.getCount();
+	}
+
+	@Override
+	public double getDispatchLatencyMean() {
+		return dispatchLatency.getMean();
+	}
+
+	@Override
+	public long getDispatchLatencyP50() {
+		return dispatchLatency.getPercentile(50);
+	}
+
+	@Override
+	public long getDispatchLatencyP99() {
+		return dispatchLatency.getPercentile(99);
+	}
+
+	@Override
+	public long getDispatchLatencyP999() {
+		return dispatchLatency.getPercentile(99.9);
+	}
+
+	@Override
+	public long getDispatchLatencyMax() {
+		return dispatchLatency.getMax();
+	}
+
+	/**
+	 * Clears all counters and the latency histogram. Gauges (active
+	 * connections, queue depth) are not affected.
+	 */
+	@Override
+	public void reset() {
+		messagesReceived.reset();
+		messagesSent.reset();
+		bytesReceived.reset();
+		bytesSent.reset();
+		handshakesCompleted.reset();
+		handshakeFailures.reset();
+		commandsReceived.clear();
+		commandsSent.clear();
+		dispatchLatency.reset();
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server, under
+	 * {@code javax.server:type=Server,port=<port>}. Registering twice has no
+	 * effect. The registration is removed when the server shuts down.
+	 * 
+	 * @return The name the metrics are registered under.
+	 * @throws JMException
+	 *             If the registration failed, e.g. another server on the same
+	 *             port is registered already.
+	 */
+	public synchronized ObjectName registerMBean() throws JMException {
+		if (objectName != null)
+			return objectName;
+
+		ObjectName name = new ObjectName("javax.server:type=Server,port=" + server.getPort());
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		objectName = name;
+		return name;
+	}
+
+	/**
+	 * Removes the registration made by {@code registerMBean()}, if any.
+	 */
+	public synchronized void unregisterMBean() {
+		if (objectName == null)
+			return;
+
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbs.unregisterMBean(objectName);
+		} catch (JMException e) {
+		}
+		objectName = null;
+	}
+
+	void received(Object msg) {
+		messagesReceived.increment();
+		if (msg instanceof Command)
+			count(commandsReceived, (Command) msg);
+	}
+
+	void sent(Object msg) {
+		messagesSent.increment();
+		if (msg instanceof Command)
+			count(commandsSent, (Command) msg);
+	}
+
+	void bytesReceived(long n) {
+		if (n > 0)
+			bytesReceived.add(n);
+	}
+
+	void bytesSent(long n) {
+		if (n > 0)
+			bytesSent.add(n);
+	}
+
+	void handshakeCompleted() {
+		handshakesCompleted.increment();
+	}
+
+	void handshakeFailed() {
+		handshakeFailures.increment();
+	}
+
+	InputStream countingInputStream(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					bytesReceived.increment();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = in.read(b, off, len);
+				bytesReceived(n);
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				bytesReceived(skipped);
+				return skipped;
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+
+	OutputStream countingOutputStream(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				bytesSent.increment();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				bytesSent(len);
+			}
+		};
+	}
+
+	/*
+	 * Enum commands by constant, anything else by class, so custom commands
+	 * that aren't enums can't grow the map without bound.
+	 */
+	private static String commandName(Command cmd) {
+		if (cmd instanceof Enum) {
+			Enum<?> e = (Enum<?>) cmd;
+			return e.getDeclaringClass().getSimpleName() + "." + e.name();
+		}
+		return cmd.getClass().getName();
+	}
+
+	private static void count(Map<String, LongAdder> counts, Command cmd) {
+		counts.computeIfAbsent(commandName(cmd), k -> new LongAdder()).increment();
+	}
+
+	private static Map<String, Long> snapshot(Map<String, LongAdder> counts) {
+		Map<String, Long> map = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> e : counts.entrySet())
+			map.put(e.getKey(), e.getValue().sum());
+		return map;
+	}
+}
@@ -0,0 +1,49 @@
+package javax.server;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@linkplain ServerMetrics}. Latencies are in nanoseconds.
+ * 
+ * @author Mordechai Meisels
+ *
+ */
+public interface ServerMetricsMXBean {
+
+	public long getMessagesReceived();
+
+	public long getMessagesSent();
+
+	public long getBytesReceived();
+
+	public long getBytesSent();
+
+	public Map<String, Long> getCommandsReceived();
+
+	public Map<String, Long> getCommandsSent();
+
+	public int getActiveConnections();
+
+	public int getMessageQueueDepth();
+
+	public int getPendingHandshakes();
+
+	public long getHandshakesCompleted();
+
+	public long getHandshakeFailures();
+
+	public long getDispatchCount();
+
+	public double getDispatchLatencyMean();
+
+	public long getDispatchLatencyP50();
+
+	public long getDispatchLatencyP99();
+
+	public long getDispatchLatencyP999();
+
+	public long getDispatchLatencyMax();
+
+	public void reset();
+
+}
@@ -0,0 +1,65 @@
+package javax.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A bounded lock-free queue for a single producer and a single consumer, a
+ * ring buffer with a sequence on each side. Every sequence is only written by
+ * its own side, so neither offer() nor poll() ever contends or retries.
+ *
+ * "Single" is about concurrency, not identity: several threads may produce,
+ * as long as they hold a common lock while doing so (likewise for consumers).
+ *
+ * Both sequences are advanced with volatile writes, so a side that checks the
+ * other's sequence after announcing it is about to wait can't miss progress.
+ */
+final class SpscQueue<E> {
+
+	private final AtomicReferenceArray<E> buffer;
+	private final int mask;
+
+	/*
+	 * The next slot to poll, written by the consumer only.
+	 */
+	private final AtomicLong head;
+
+	/*
+	 * The next slot to offer, written by the producer only.
+	 */
+	private final AtomicLong tail;
+
+	SpscQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+		buffer = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+		head = new AtomicLong();
+		tail = new AtomicLong();
+	}
+
+	boolean offer(E e) {
+		long t = tail.get();
+		if (t - head.get() > mask)
+			return false;
+
+		buffer.lazySet((int) t & mask, e);
+		tail.set(t + 1); // publishes the element
+		return true;
+	}
+
+	E poll() {
+		long h = head.get();
+		if (h == tail.get())
+			return null;
+
+		int i = (int) h & mask;
+		E e = buffer.get(i);
+		buffer.lazySet(i, null);
+		head.set(h + 1); // frees the slot
+		return e;
+	}
+
+	boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+}
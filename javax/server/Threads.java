@@ -0,0 +1,61 @@
+package javax.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Creates the threads used by Server and Client, either as regular daemon
+ * threads or as virtual threads. Virtual threads are looked up reflectively,
+ * so this code still runs on runtimes that don't have them.
+ */
+final class Threads {
+
+	/*
+	 * null if the runtime doesn't support virtual threads.
+	 */
+	private static final ThreadFactory VIRTUAL = lookupVirtual();
+
+	private Threads() {
+	}
+
+	static boolean virtualSupported() {
+		return VIRTUAL != null;
+	}
+
+	/*
+	 * Returns a started thread running the given task.
+	 */
+	static Thread start(boolean virtual, Runnable task, String name) {
+		Thread t = create(virtual, task, name);
+		t.start();
+		return t;
+	}
+
+	/*
+	 * Creates the threads of an executor, all with the same name.
+	 */
+	static ThreadFactory factory(boolean virtual, String name) {
+		return task -> create(virtual, task, name);
+	}
+
+	private static Thread create(boolean virtual, Runnable task, String name) {
+		Thread t = virtual ? VIRTUAL.newThread(task) : new Thread(task);
+		t.setName(name);
+		t.setDaemon(true); // virtual threads are always daemon
+		return t;
+	}
+
+	/*
+	 * Thread.ofVirtual().factory()
+	 */
+	private static ThreadFactory lookupVirtual() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = ofVirtual.getReturnType().getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package javax.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * A hashed timing wheel: timeouts are hashed by their deadline tick into a
+ * fixed ring of buckets, so scheduling is O(1) and every tick only looks at a
+ * single bucket. Timeouts further away than a full turn simply stay in their
+ * bucket until their tick comes.
+ *
+ * Timeouts may be scheduled from any thread; advance() must always be called
+ * from the same one, which also runs the timeouts. A timeout that throws is
+ * reported and dropped, without holding up the others.
+ */
+final class TimingWheel {
+
+	/*
+	 * Returns the nanoseconds until it should expire again, or a negative
+	 * value if it is done.
+	 */
+	interface Timeout {
+		long expire(long now);
+	}
+
+	private static final int WHEEL_SIZE = 512;
+
+	private static final class Entry {
+		final Timeout timeout;
+		long deadlineTick;
+
+		Entry(Timeout timeout, long deadlineTick) {
+			this.timeout = timeout;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+	private final long tickNanos;
+	private final long start;
+	private final ArrayDeque<Entry>[] buckets;
+	private final Queue<Entry> added;
+
+	/*
+	 * The last tick processed.
+	 */
+	private long tick;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	TimingWheel(long tickNanos) {
+		this.tickNanos = Math.max(1, tickNanos);
+		start = System.nanoTime();
+		buckets = new ArrayDeque[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			buckets[i] = new ArrayDeque<>();
+		added = new ConcurrentLinkedQueue<>();
+	}
+
+	long tickNanos() {
+		return tickNanos;
+	}
+
+	void schedule(Timeout timeout, long delayNanos) {
+		added.add(new Entry(timeout, toTick(System.nanoTime() + delayNanos)));
+	}
+
+	/*
+	 * Runs every timeout whose tick has passed by now.
+	 */
+	void advance(long now) {
+		Entry e;
+		while ((e = added.poll()) != null)
+			place(e);
+
+		long target = (now - start) / tickNanos;
+		while (tick < target) {
+			tick++;
+			expire(buckets[(int) (tick & (WHEEL_SIZE - 1))], now);
+		}
+	}
+
+	private void expire(ArrayDeque<Entry> bucket, long now) {
+		// anything placed back in this bucket is at least a turn away
+		for (int n = bucket.size(); n > 0; n--) {
+			Entry e = bucket.poll();
+			if (e.deadlineTick > tick) {
+				bucket.add(e);
+				continue;
+			}
+
+			long delay;
+			try {
+				delay = e.timeout.expire(now);
+			} catch (Throwable t) {
+				// the rest of the bucket still runs; a timeout that failed is done
+				t.printStackTrace();
+				continue;
+			}
+			if (delay >= 0) {
+				e.deadlineTick = toTick(now + delay);
+				place(e);
+			}
+		}
+	}
+
+	private void place(Entry e) {
+		if (e.deadlineTick <= tick)
+			e.deadlineTick = tick + 1;
+		buckets[(int) (e.deadlineTick & (WHEEL_SIZE - 1))].add(e);
+	}
+
+	private long toTick(long deadline) {
+		// round up, never expire early
+		return (deadline - start + tickNanos - 1) / tickNanos;
+	}
+}
@@ -0,0 +1,345 @@
+package javax.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/*
+ * TLS over a socket channel, driven by an SSLEngine, so that a selector thread
+ * can serve many encrypted connections.
+ *
+ * The channel starts out blocking: the TLS handshake, and the Object streams
+ * of the HANDSHAKE/CONNECTED exchange, run on the authentication thread
+ * through getInputStream() and getOutputStream(). These use the socket's own
+ * streams underneath, so the socket timeout still applies. Once the channel is
+ * non-blocking, read() and write() are used just like the channel's.
+ *
+ * Decrypted data may be left over after a read, which the selector won't
+ * report again; hasBufferedInput() tells if reading should go on. Likewise,
+ * written data may be encrypted but not yet sent; hasPendingOutput() tells if
+ * the channel has to be watched for writability.
+ *
+ * Reads and writes may run on different threads, as SSLEngine allows; reads
+ * must not be concurrent with each other.
+ */
+final class TlsChannel {
+
+	private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final InputStream rawIn;
+	private final OutputStream rawOut;
+
+	/*
+	 * Received, still encrypted data, ready to be read into.
+	 */
+	private ByteBuffer netIn;
+
+	/*
+	 * Decrypted data not yet read, ready to be read from.
+	 */
+	private ByteBuffer appIn;
+
+	/*
+	 * Encrypted data not yet sent, ready to be read from.
+	 */
+	private ByteBuffer netOut;
+
+	/*
+	 * Whether netIn holds nothing but an incomplete record.
+	 */
+	private boolean underflow;
+
+	TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+
+		Socket socket = channel.socket();
+		rawIn = socket.getInputStream();
+		rawOut = socket.getOutputStream();
+
+		SSLSession session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+	}
+
+	SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	/*
+	 * Runs the TLS handshake, the channel must still be blocking.
+	 */
+	void handshake() throws IOException {
+		engine.beginHandshake();
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				synchronized (this) {
+					wrap(EMPTY);
+					flush();
+				}
+				break;
+			case NEED_UNWRAP:
+				if ((underflow || netIn.position() == 0) && fill() < 0)
+					throw new EOFException("Connection closed during TLS handshake.");
+				unwrapHandshake();
+				break;
+			case NEED_UNWRAP_AGAIN:
+				unwrapHandshake();
+				break;
+			case NEED_TASK:
+				runTasks();
+				break;
+			default:
+				return;
+			}
+		}
+	}
+
+	private void unwrapHandshake() throws IOException {
+		if (unwrap().getStatus() == Status.CLOSED)
+			throw new SSLException("TLS connection closed during handshake.");
+	}
+
+	/*
+	 * Reads decrypted data into dst, like SocketChannel.read(). On a blocking
+	 * channel this blocks until at least one byte has been read.
+	 */
+	int read(ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		while (dst.hasRemaining()) {
+			if (appIn.hasRemaining()) {
+				transfer(appIn, dst);
+				continue;
+			}
+
+			if (!underflow && netIn.position() > 0) {
+				SSLEngineResult result = unwrap();
+				if (result.getStatus() == Status.CLOSED)
+					break;
+				afterUnwrap(result);
+				// nothing more can be made of what has been received
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+						&& engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING)
+					underflow = true;
+				continue;
+			}
+
+			// never block once there is something to return
+			if (dst.position() > start)
+				break;
+			int n = fill();
+			if (n < 0)
+				return -1;
+			if (n == 0)
+				break;
+		}
+
+		int n = dst.position() - start;
+		return n == 0 && engine.isInboundDone() ? -1 : n;
+	}
+
+	/*
+	 * Encrypts and sends as much of srcs as the channel takes, returns the
+	 * amount of bytes consumed from srcs. On a blocking channel everything is
+	 * sent.
+	 */
+	synchronized long write(ByteBuffer... srcs) throws IOException {
+		long consumed = 0;
+		while (flush() && hasRemaining(srcs)) {
+			SSLEngineResult result = wrap(srcs);
+			if (result.getStatus() == Status.CLOSED)
+				throw new SSLException("TLS connection closed.");
+			consumed += result.bytesConsumed();
+		}
+		return consumed;
+	}
+
+	boolean hasBufferedInput() {
+		return appIn.hasRemaining() || !underflow && netIn.position() > 0;
+	}
+
+	synchronized boolean hasPendingOutput() {
+		return netOut.hasRemaining();
+	}
+
+	/*
+	 * Sends close_notify, as far as the channel takes it without blocking.
+	 */
+	synchronized void close() {
+		engine.closeOutbound();
+		try {
+			while (!engine.isOutboundDone() && flush())
+				wrap(EMPTY);
+			flush();
+		} catch (IOException e) {
+		}
+	}
+
+	InputStream getInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				return TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+			}
+
+			@Override
+			public int available() {
+				return appIn.remaining();
+			}
+		};
+	}
+
+	OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				TlsChannel.this.write(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	private SSLEngineResult unwrap() throws SSLException {
+		SSLEngineResult result;
+		netIn.flip();
+		appIn.compact();
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			appIn.flip();
+			netIn.compact();
+		}
+
+		if (result.getStatus() == Status.BUFFER_UNDERFLOW) {
+			underflow = true;
+			// a record larger than the buffer
+			if (!netIn.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() + engine.getSession().getPacketBufferSize());
+				netIn.flip();
+				netIn = larger.put(netIn);
+			}
+		} else if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+			ByteBuffer larger = ByteBuffer.allocate(appIn.remaining() + engine.getSession().getApplicationBufferSize());
+			appIn = larger.put(appIn).flip();
+		}
+		return result;
+	}
+
+	/*
+	 * Post handshake messages (e.g. key updates) may need an answer.
+	 */
+	private void afterUnwrap(SSLEngineResult result) throws IOException {
+		HandshakeStatus status = result.getHandshakeStatus();
+		if (status == HandshakeStatus.NEED_TASK) {
+			runTasks();
+			status = engine.getHandshakeStatus();
+		}
+		if (status == HandshakeStatus.NEED_WRAP) {
+			synchronized (this) {
+				wrap(EMPTY);
+				flush();
+			}
+		}
+	}
+
+	/*
+	 * Must hold the lock.
+	 */
+	private SSLEngineResult wrap(ByteBuffer[] srcs) throws SSLException {
+		SSLEngineResult result;
+		netOut.compact();
+		try {
+			result = engine.wrap(srcs, netOut);
+		} finally {
+			netOut.flip();
+		}
+
+		if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+			ByteBuffer larger = ByteBuffer.allocate(netOut.remaining() + engine.getSession().getPacketBufferSize());
+			netOut = larger.put(netOut).flip();
+		}
+		return result;
+	}
+
+	/*
+	 * Reads encrypted data from the channel.
+	 */
+	private int fill() throws IOException {
+		int n;
+		if (channel.isBlocking()) {
+			n = rawIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+			if (n > 0)
+				netIn.position(netIn.position() + n);
+		} else {
+			n = channel.read(netIn);
+		}
+
+		if (n > 0)
+			underflow = false;
+		return n;
+	}
+
+	/*
+	 * Sends encrypted data, returns if all has been sent. Must hold the lock.
+	 */
+	private boolean flush() throws IOException {
+		if (!netOut.hasRemaining())
+			return true;
+
+		if (channel.isBlocking()) {
+			rawOut.write(netOut.array(), netOut.arrayOffset() + netOut.position(), netOut.remaining());
+			netOut.position(netOut.limit());
+		} else {
+			channel.write(netOut);
+		}
+		return !netOut.hasRemaining();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null)
+			task.run();
+	}
+
+	private static void transfer(ByteBuffer src, ByteBuffer dst) {
+		int n = Math.min(src.remaining(), dst.remaining());
+		ByteBuffer slice = src.slice();
+		slice.limit(n);
+		dst.put(slice);
+		src.position(src.position() + n);
+	}
+
+	private static boolean hasRemaining(ByteBuffer[] buffers) {
+		for (ByteBuffer b : buffers)
+			if (b.hasRemaining())
+				return true;
+		return false;
+	}
+}
@@ -0,0 +1,126 @@
+package javax.server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Subscribers by topic. Topics are dot separated segments, e.g. "chat.room1".
+ * Subscriptions may use wildcards as whole segments: "*" matches any single
+ * segment ("chat.*.typing"), and a trailing "#" matches the rest of the topic,
+ * zero or more segments, so "chat.#" is a prefix subscription and "#" alone
+ * matches every topic.
+ *
+ * Subscriptions form a trie by segment, so matching a topic only visits the
+ * nodes along it and the wildcard branches next to them, no matter how many
+ * topics and subscribers there are. Every node has a concurrent subscriber
+ * set; matching doesn't lock, while changes to the trie synchronize, and
+ * prune nodes left without subscribers and children.
+ */
+final class Topics<S> {
+
+	private static final String ANY = "*";
+	private static final String REST = "#";
+
+	private static final class Node<S> {
+		final Node<S> parent;
+		final String segment;
+		final ConcurrentHashMap<String, Node<S>> children;
+		final Set<S> subscribers;
+
+		Node(Node<S> parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+			children = new ConcurrentHashMap<>();
+			subscribers = ConcurrentHashMap.newKeySet();
+		}
+	}
+
+	private final Node<S> root = new Node<>(null, null);
+
+	synchronized boolean add(String pattern, S subscriber) {
+		Node<S> node = root;
+		for (String segment : split(pattern, true)) {
+			Node<S> child = node.children.get(segment);
+			if (child == null) {
+				child = new Node<>(node, segment);
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+		return node.subscribers.add(subscriber);
+	}
+
+	synchronized boolean remove(String pattern, S subscriber) {
+		Node<S> node = root;
+		for (String segment : split(pattern, true)) {
+			node = node.children.get(segment);
+			if (node == null)
+				return false;
+		}
+		if (!node.subscribers.remove(subscriber))
+			return false;
+
+		while (node.parent != null && node.subscribers.isEmpty() && node.children.isEmpty()) {
+			node.parent.children.remove(node.segment, node);
+			node = node.parent;
+		}
+		return true;
+	}
+
+	/*
+	 * Every subscriber with a subscription matching the topic, once.
+	 */
+	Set<S> match(String topic) {
+		String[] segments = split(topic, false);
+		if (root.children.isEmpty())
+			return Collections.emptySet();
+
+		Set<S> matched = new HashSet<>();
+		match(root, segments, 0, matched);
+		return matched;
+	}
+
+	private void match(Node<S> node, String[] segments, int index, Set<S> matched) {
+		Node<S> rest = node.children.get(REST);
+		if (rest != null)
+			matched.addAll(rest.subscribers);
+
+		if (index == segments.length) {
+			matched.addAll(node.subscribers);
+			return;
+		}
+
+		Node<S> exact = node.children.get(segments[index]);
+		if (exact != null)
+			match(exact, segments, index + 1, matched);
+		Node<S> any = node.children.get(ANY);
+		if (any != null)
+			match(any, segments, index + 1, matched);
+	}
+
+	/*
+	 * Wildcards are only allowed in subscriptions, "#" only as the last
+	 * segment.
+	 */
+	private static String[] split(String topic, boolean wildcards) {
+		if (topic == null)
+			throw new NullPointerException("topic");
+		if (topic.isEmpty())
+			throw new IllegalArgumentException("Empty topic.");
+
+		String[] segments = topic.split("\\.", -1);
+		for (int i = 0; i < segments.length; i++) {
+			String s = segments[i];
+			if (s.isEmpty())
+				throw new IllegalArgumentException("Empty segment in topic: " + topic);
+			boolean wildcard = s.equals(ANY) || s.equals(REST);
+			if (wildcard && !wildcards)
+				throw new IllegalArgumentException("Wildcard in published topic: " + topic);
+			if (s.equals(REST) && i != segments.length - 1)
+				throw new IllegalArgumentException("'#' must be the last segment: " + topic);
+		}
+		return segments;
+	}
+}
@@ -0,0 +1,321 @@
+package javax.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A Unix domain socket connection, see Server.setUnixSocketPath(). Channels of
+ * Unix domain sockets have no Socket adaptor, so this is one, letting them
+ * take the same way as TCP sockets: through the handshake with the socket
+ * streams, then either the streams or the channel, once it is registered with
+ * a selector thread.
+ *
+ * The channel is non-blocking throughout; the streams block by waiting on a
+ * selector of their own, one per direction, so reads honor the socket timeout
+ * just like those of a TCP socket. After the handshake, the selectors are
+ * released: either the channel is used directly, or it is made blocking for
+ * the streams that remain.
+ */
+final class UnixSocket extends Socket {
+
+	private final SocketChannel channel;
+	private final InputStream in;
+	private final OutputStream out;
+
+	/*
+	 * Created on first wait, each only used by the thread reading or writing.
+	 */
+	private Selector readSelector;
+	private Selector writeSelector;
+
+	private volatile int timeout;
+
+	private UnixSocket(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(false);
+		in = new Input();
+		out = new Output();
+	}
+
+	static UnixSocket connect(Path path) throws IOException {
+		SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+		try {
+			return new UnixSocket(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Blocks until a connection is accepted.
+	 */
+	static UnixSocket accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		try {
+			return new UnixSocket(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * Binds a listening channel to the path. A socket file left there by a
+	 * server that is gone (nobody accepts on it) is replaced; anything else
+	 * fails binding.
+	 */
+	static ServerSocketChannel bind(Path path, int backlog) throws IOException {
+		if (isSocketFile(path)) {
+			SocketChannel probe;
+			try {
+				probe = SocketChannel.open(UnixDomainSocketAddress.of(path));
+			} catch (ConnectException e) {
+				probe = null;
+				Files.deleteIfExists(path);
+			}
+			if (probe != null) {
+				probe.close();
+				throw new SocketException("Unix domain socket already in use: " + path);
+			}
+		}
+
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(UnixDomainSocketAddress.of(path), backlog);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		return server;
+	}
+
+	private static boolean isSocketFile(Path path) {
+		try {
+			// neither regular file, directory nor link
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Closes the selectors used by the streams, once the channel is only used
+	 * directly; the streams must not be used afterwards.
+	 */
+	synchronized void releaseSelectors() {
+		closeSelectors();
+	}
+
+	/*
+	 * Makes the channel blocking, once the streams are used for good, so reads
+	 * no longer go through a selector; nor do they time out.
+	 */
+	synchronized void useBlocking() throws IOException {
+		closeSelectors();
+		channel.configureBlocking(true);
+	}
+
+	@Override
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (isClosed())
+			throw new SocketException("Socket is closed");
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (isClosed())
+			throw new SocketException("Socket is closed");
+		return out;
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		if (timeout < 0)
+			throw new IllegalArgumentException("timeout can't be negative");
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		try {
+			return channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		// wakes up waiting streams, and deregisters the channel so it is closed for real
+		closeSelectors();
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return "UnixSocket[" + getRemoteSocketAddress() + "]";
+	}
+
+	private void closeSelectors() {
+		try {
+			if (readSelector != null)
+				readSelector.close();
+			if (writeSelector != null)
+				writeSelector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private synchronized Selector selector(int op) throws IOException {
+		if (isClosed())
+			throw new SocketException("Socket is closed");
+
+		Selector selector = op == SelectionKey.OP_READ ? readSelector : writeSelector;
+		if (selector == null) {
+			selector = Selector.open();
+			channel.register(selector, op);
+			if (op == SelectionKey.OP_READ)
+				readSelector = selector;
+			else
+				writeSelector = selector;
+		}
+		return selector;
+	}
+
+	/*
+	 * Waits until the channel is ready for op, or until the deadline (in
+	 * nanos, 0 for none) has passed.
+	 */
+	private void await(int op, long deadline) throws IOException {
+		Selector selector = selector(op);
+		try {
+			if (deadline == 0) {
+				selector.select();
+			} else {
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+					throw new SocketTimeoutException("Read timed out");
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+			}
+			selector.selectedKeys().clear();
+		} catch (ClosedSelectorException e) {
+			throw new SocketException("Socket is closed");
+		}
+	}
+
+	private final class Input extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+			int n = channel.read(dst);
+			if (n != 0)
+				return n;
+
+			int t = timeout;
+			long deadline = t == 0 ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(t);
+			while ((n = channel.read(dst)) == 0)
+				await(SelectionKey.OP_READ, deadline);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixSocket.this.close();
+		}
+	}
+
+	private final class Output extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while (true) {
+				channel.write(src);
+				if (!src.hasRemaining())
+					return;
+				await(SelectionKey.OP_WRITE, 0);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixSocket.this.close();
+		}
+	}
+}
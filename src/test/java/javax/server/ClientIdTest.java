@@ -0,0 +1,83 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ClientIdTest {
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private Client first;
+	private Client second;
+
+	@AfterEach
+	void shutDown() {
+		if (first != null)
+			first.shutDown();
+		if (second != null)
+			second.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private Object field(String name) throws Exception {
+		Field field = Server.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(server);
+	}
+
+	private Client connect() {
+		Client client = new Client("localhost", port);
+		assertTrue(client.start());
+		return client;
+	}
+
+	@Test
+	void idsAreSequential() {
+		server = new Server(port);
+		assertTrue(server.start());
+
+		first = connect();
+		second = connect();
+		assertEquals(1, first.getClientId());
+		assertEquals(2, second.getClientId());
+	}
+
+	@Test
+	void wrappedSequenceSkipsLiveIds() throws Exception {
+		server = new Server(port);
+		assertTrue(server.start());
+		first = connect();
+		assertEquals(1, first.getClientId());
+
+		// wrapped around: 0 is never used, and 1 is still connected
+		((AtomicInteger) field("nextClientId")).set(-1);
+		second = connect();
+		assertEquals(2, second.getClientId());
+		assertTrue(first.running());
+		assertEquals(2, server.getClients().size());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	void reservedIdsAreSkipped() throws Exception {
+		server = new Server(port);
+		assertTrue(server.start());
+
+		// as if a concurrent handshake had sent id 1, and not yet registered it
+		Set<Integer> reserved = (Set<Integer>) field("reservedIds");
+		reserved.add(1);
+		first = connect();
+		assertEquals(2, first.getClientId());
+
+		// id 2 is released once registered
+		assertEquals(Set.of(1), reserved);
+	}
+}
@@ -0,0 +1,159 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ClientPoolTest {
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private ClientPool pool;
+
+	/*
+	 * Client id and message, in the order received.
+	 */
+	private final List<Object[]> received = Collections.synchronizedList(new ArrayList<>());
+
+	@AfterEach
+	void shutDown() {
+		if (pool != null)
+			pool.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer() {
+		server = new Server(port);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				if (msg instanceof Request)
+					client.reply((Request) msg, client.getClientId());
+				else
+					received.add(new Object[] { client.getClientId(), msg });
+			}
+		});
+		assertTrue(server.start());
+	}
+
+	@Test
+	void channelsKeepTheirOrder() {
+		startServer();
+		pool = new ClientPool("localhost", port, 3);
+		assertTrue(pool.start());
+
+		for (int i = 0; i < 1000; i++)
+			for (int channel = 0; channel < 4; channel++)
+				assertTrue(pool.send(channel, channel + ":" + i));
+		Loopback.await(() -> received.size() == 4000, "all messages");
+
+		for (int channel = 0; channel < 4; channel++) {
+			Set<Object> ids = new HashSet<>();
+			int next = 0;
+			synchronized (received) {
+				for (Object[] r : received) {
+					String msg = (String) r[1];
+					if (!msg.startsWith(channel + ":"))
+						continue;
+					ids.add(r[0]);
+					assertEquals(channel + ":" + next++, msg);
+				}
+			}
+			assertEquals(1000, next);
+			assertEquals(1, ids.size(), "channel " + channel + " used one connection");
+		}
+	}
+
+	@Test
+	void requestsSpreadOverTheConnections() throws Exception {
+		startServer();
+		pool = new ClientPool("localhost", port, 3);
+		assertTrue(pool.start());
+
+		Set<Object> ids = new HashSet<>();
+		for (int i = 0; i < 30; i++)
+			ids.add(pool.request("who", Duration.ofSeconds(10)).get(10, TimeUnit.SECONDS));
+		assertEquals(3, ids.size());
+	}
+
+	@Test
+	void sendsAvoidConnectionsWithQueuedWrites() {
+		startServer();
+		pool = new ClientPool("localhost", port, 2) {
+			@Override
+			protected Client createClient(String serverAddress, int port) {
+				Client client = new Client(serverAddress, port);
+				// writes wait long enough to be counted
+				client.setWriteBatchSize(1000);
+				client.setWriteLinger(500);
+				return client;
+			}
+		};
+		assertTrue(pool.start());
+
+		int busy = pool.getClient(0).getClientId();
+		for (int i = 0; i < 3; i++)
+			assertTrue(pool.send(0, "queued"));
+		assertTrue(pool.send("a"));
+		assertTrue(pool.send("b"));
+		Loopback.await(() -> received.size() == 5, "all messages");
+		synchronized (received) {
+			for (Object[] r : received)
+				if (!r[1].equals("queued"))
+					assertNotEquals(busy, r[0]);
+		}
+	}
+
+	@Test
+	void replacesDisconnectedClients() {
+		startServer();
+		pool = new ClientPool("localhost", port, 2);
+		pool.setReconnectInterval(20);
+		List<Object> connected = Collections.synchronizedList(new ArrayList<>());
+		pool.addClientListener(new ClientAdapter() {
+			@Override
+			public void connected(Client client) {
+				connected.add(client);
+			}
+		});
+		assertTrue(pool.start());
+		Loopback.await(() -> server.getClients().size() == 2, "both connections");
+
+		Client first = pool.getClients().get(0);
+		server.getClient(first.getClientId()).localShutDown();
+		Loopback.await(() -> !first.running(), "the client to disconnect");
+		Loopback.await(() -> pool.getRunningCount() == 2, "the replacement");
+
+		assertNotSame(first, pool.getClients().get(0));
+		assertEquals(2, server.getClients().size());
+		// listeners move over to replacements
+		Loopback.await(() -> connected.size() == 3, "the replacement's connected event");
+	}
+
+	@Test
+	void connectsOnceTheServerComesUp() {
+		pool = new ClientPool("localhost", port, 2);
+		pool.setReconnectInterval(20);
+		assertFalse(pool.start());
+		assertEquals(0, pool.getRunningCount());
+
+		startServer();
+		Loopback.await(() -> pool.getRunningCount() == 2, "the pool to connect");
+		assertTrue(pool.send(0, "hello"));
+		Loopback.await(() -> received.size() == 1, "the message");
+	}
+}
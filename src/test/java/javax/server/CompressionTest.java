@@ -0,0 +1,119 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class CompressionTest {
+
+	private static final byte[] OLD = "{\"type\":\"quote\",\"symbol\":\"\",\"bid\":,\"ask\":,\"venue\":\"\"}"
+			.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] NEW = "{\"type\":\"trade\",\"symbol\":\"\",\"price\":,\"size\":,\"venue\":\"\"}"
+			.getBytes(StandardCharsets.UTF_8);
+	private static final String TRADE = "{\"type\":\"trade\",\"symbol\":\"ACME\",\"price\":12.5,\"size\":300,\"venue\":\"XNAS\"}";
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private Client client;
+
+	@AfterEach
+	void shutDown() {
+		if (client != null)
+			client.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private static byte[] encode(MessageCodec codec, Object msg) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		codec.encode(msg, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Object decode(MessageCodec codec, Object msg, byte[] payload) throws Exception {
+		return codec.decode(codec.typeId(msg), new DataInputStream(new ByteArrayInputStream(payload)));
+	}
+
+	@Test
+	void dictionaryShrinksSmallPayloads() throws Exception {
+		MessageCodec plain = new CompressionCodec(new SerializationCodec(), 0);
+		MessageCodec withDictionary = new CompressionCodec(new SerializationCodec(), 0, NEW);
+
+		byte[] without = encode(plain, TRADE);
+		byte[] with = encode(withDictionary, TRADE);
+		assertTrue(with.length < without.length, with.length + " >= " + without.length);
+		assertEquals(TRADE, decode(plain, TRADE, without));
+		assertEquals(TRADE, decode(withDictionary, TRADE, with));
+	}
+
+	@Test
+	void anyKnownDictionaryIsAccepted() throws Exception {
+		// rotating: the sender already compresses with the new dictionary
+		MessageCodec sender = new CompressionCodec(new SerializationCodec(), 0, NEW, OLD);
+		MessageCodec receiver = new CompressionCodec(new SerializationCodec(), 0, OLD, NEW);
+		assertEquals(TRADE, decode(receiver, TRADE, encode(sender, TRADE)));
+	}
+
+	@Test
+	void unknownDictionaryIsRejected() throws Exception {
+		MessageCodec sender = new CompressionCodec(new SerializationCodec(), 0, NEW);
+		MessageCodec receiver = new CompressionCodec(new SerializationCodec(), 0, OLD);
+		byte[] payload = encode(sender, TRADE);
+		assertThrows(StreamCorruptedException.class, () -> decode(receiver, TRADE, payload));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void compressesBothWays(int selectorThreads) {
+		List<Object> received = Collections.synchronizedList(new ArrayList<>());
+		server = new Server(port);
+		server.setSelectorThreadCount(selectorThreads);
+		server.setCompressionThreshold(64);
+		server.setCompressionDictionaries(NEW, OLD);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				server.send((String) msg, client.getClientId());
+			}
+		});
+		assertTrue(server.start());
+
+		client = new Client("localhost", port);
+		client.setCompressionDictionaries(OLD, NEW);
+		client.addClientListener(new ClientAdapter() {
+			@Override
+			public void messageReceived(Client client, Object msg) {
+				received.add(msg);
+			}
+		});
+		assertTrue(client.start());
+
+		String large = TRADE.repeat(2000);
+		long before = server.getMetrics().getBytesReceived();
+		assertTrue(client.send(large));
+		assertTrue(client.send("small"));
+		assertTrue(client.send(TRADE));
+
+		Loopback.await(() -> received.size() == 3, "the echoes");
+		assertEquals(List.of(large, "small", TRADE), received);
+		long bytes = server.getMetrics().getBytesReceived() - before;
+		assertTrue(bytes < large.length() / 10, bytes + " bytes for " + large.length());
+	}
+}
@@ -0,0 +1,102 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+
+import org.junit.jupiter.api.Test;
+
+class DatagramsTest {
+
+	private final byte[] key = Datagrams.newKey();
+
+	/*
+	 * A received copy, backed by an array of its own.
+	 */
+	private static ByteBuffer receive(ByteBuffer datagram) {
+		byte[] bytes = new byte[datagram.remaining()];
+		datagram.duplicate().get(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private ByteBuffer encode(byte direction, int id, long seq, Object msg) throws IOException {
+		return Datagrams.encode(Frames.DEFAULT_CODEC, Datagrams.mac(key), direction, id, seq, msg);
+	}
+
+	@Test
+	void roundTrip() throws Exception {
+		ByteBuffer datagram = receive(encode(Datagrams.TO_SERVER, 42, 7, "hello"));
+
+		assertTrue(Datagrams.verify(Datagrams.mac(key), Datagrams.TO_SERVER, datagram));
+		assertEquals(42, datagram.getInt());
+		assertEquals(7, datagram.getLong());
+		assertEquals("hello", Datagrams.decode(Frames.DEFAULT_CODEC, datagram));
+	}
+
+	@Test
+	void registrationHasNoMessage() throws Exception {
+		ByteBuffer datagram = receive(encode(Datagrams.TO_SERVER, 42, 0, null));
+		assertEquals(Datagrams.HEADER_LENGTH + Datagrams.TAG_LENGTH, datagram.remaining());
+
+		assertTrue(Datagrams.verify(Datagrams.mac(key), Datagrams.TO_SERVER, datagram));
+		datagram.position(Datagrams.HEADER_LENGTH);
+		assertNull(Datagrams.decode(Frames.DEFAULT_CODEC, datagram));
+	}
+
+	@Test
+	void rejectsAnyChangedByte() throws Exception {
+		ByteBuffer datagram = encode(Datagrams.TO_CLIENT, 42, 7, "hello");
+		Mac mac = Datagrams.mac(key);
+		for (int i = 0; i < datagram.remaining(); i++) {
+			ByteBuffer forged = receive(datagram);
+			forged.put(i, (byte) (forged.get(i) ^ 1));
+			assertFalse(Datagrams.verify(mac, Datagrams.TO_CLIENT, forged), "byte " + i);
+		}
+	}
+
+	@Test
+	void rejectsOtherKeyDirectionOrLength() throws Exception {
+		ByteBuffer datagram = encode(Datagrams.TO_SERVER, 42, 7, "hello");
+
+		assertFalse(Datagrams.verify(Datagrams.mac(Datagrams.newKey()), Datagrams.TO_SERVER, receive(datagram)));
+		// reflected back to its sender
+		assertFalse(Datagrams.verify(Datagrams.mac(key), Datagrams.TO_CLIENT, receive(datagram)));
+
+		ByteBuffer truncated = receive(datagram);
+		truncated.limit(truncated.limit() - 1);
+		assertFalse(Datagrams.verify(Datagrams.mac(key), Datagrams.TO_SERVER, truncated));
+		byte[] runt = Arrays.copyOf(truncated.array(), Datagrams.TAG_LENGTH);
+		assertFalse(Datagrams.verify(Datagrams.mac(key), Datagrams.TO_SERVER, ByteBuffer.wrap(runt)));
+	}
+
+	@Test
+	void rejectsMessagesTooLarge() {
+		assertThrows(IllegalArgumentException.class,
+				() -> encode(Datagrams.TO_SERVER, 42, 7, new byte[Datagrams.MAX_LENGTH]));
+	}
+
+	@Test
+	void keysAreRandom() {
+		assertEquals(Datagrams.KEY_LENGTH, key.length);
+		assertFalse(Arrays.equals(key, Datagrams.newKey()));
+	}
+
+	@Test
+	void windowOnlyMovesForward() {
+		assertTrue(Datagrams.inWindow(1, 0));
+		assertTrue(Datagrams.inWindow(Datagrams.MAX_SEQUENCE_GAP, 0));
+		assertFalse(Datagrams.inWindow(0, 0));
+		assertFalse(Datagrams.inWindow(4, 5));
+		assertFalse(Datagrams.inWindow(Datagrams.MAX_SEQUENCE_GAP + 1, 0));
+		assertFalse(Datagrams.inWindow(Long.MAX_VALUE, 0));
+		assertFalse(Datagrams.inWindow(Long.MIN_VALUE, 0));
+	}
+}
@@ -0,0 +1,86 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class HeartbeatTest {
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private Client client;
+
+	@AfterEach
+	void shutDown() {
+		if (client != null)
+			client.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer(int selectorThreads, long heartbeat, long idleTimeout) {
+		server = new Server(port);
+		server.setSelectorThreadCount(selectorThreads);
+		server.setHeartbeatInterval(heartbeat);
+		server.setIdleTimeout(idleTimeout);
+		assertTrue(server.start());
+	}
+
+	/*
+	 * Completes the handshake by hand, and then never answers a ping.
+	 */
+	private Socket zombie() throws Exception {
+		Socket socket = new Socket("localhost", port);
+		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+		assertEquals(ServerCommand.HANDSHAKE, in.readObject());
+		out.writeObject(ClientCommand.HANDSHAKE);
+		out.flush();
+		in.readInt();
+		in.readObject(); // CONNECTED(_FRAMED)
+		return socket;
+	}
+
+	private long pings() {
+		Long pings = server.getMetrics().getCommandsSent().get("ServerCommand.PING");
+		return pings == null ? 0 : pings;
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void reapsSilentClientsOnly(int selectorThreads) throws Exception {
+		startServer(selectorThreads, 50, 400);
+		client = new Client("localhost", port);
+		assertTrue(client.start());
+
+		try (Socket zombie = zombie()) {
+			Loopback.await(() -> server.getClients().size() == 2, "both connections");
+			Loopback.await(() -> server.getClients().size() == 1, "the silent client to be reaped");
+
+			// answered pings keep the live client
+			Thread.sleep(800);
+			assertTrue(client.running());
+			assertEquals(1, server.getClients().size());
+			assertTrue(pings() > 5);
+		}
+	}
+
+	@Test
+	void pingsDontStartWriterThreads() throws Exception {
+		startServer(0, 20, 0);
+		client = new Client("localhost", port);
+		assertTrue(client.start());
+
+		Loopback.await(() -> pings() >= 5, "pings");
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			assertTrue(!t.getName().contains("writing thread"), t.getName());
+	}
+}
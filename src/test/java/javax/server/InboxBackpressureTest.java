@@ -0,0 +1,81 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class InboxBackpressureTest {
+
+	private static final int CAPACITY = 8;
+	private static final int COUNT = 2000;
+
+	record Chunk(int index, byte[] padding) implements Serializable {
+	}
+
+	private final int port = Loopback.freePort();
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private final List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+	private Server server;
+	private Client client;
+
+	@AfterEach
+	void shutDown() {
+		gate.countDown();
+		if (client != null)
+			client.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void stallsReadingUntilThereIsRoom(int selectorThreads) throws Exception {
+		server = new Server(port, 1);
+		server.setSelectorThreadCount(selectorThreads);
+		server.setMessageQueueCapacity(CAPACITY);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+				}
+				handled.add(((Chunk) msg).index());
+			}
+		});
+		assertTrue(server.start());
+		client = new Client("localhost", port);
+		assertTrue(client.start());
+
+		Thread sender = new Thread(() -> {
+			for (int i = 0; i < COUNT; i++)
+				client.send(new Chunk(i, new byte[8192]));
+		});
+		sender.start();
+
+		// the handler holds one message, the queue the next few, TCP the rest
+		Loopback.await(() -> server.getMessageQueueDepth() == CAPACITY, "the queue to fill");
+		Thread.sleep(300);
+		assertEquals(CAPACITY, server.getMessageQueueDepth());
+		assertTrue(sender.isAlive());
+		assertTrue(handled.isEmpty());
+
+		gate.countDown();
+		sender.join(TimeUnit.SECONDS.toMillis(10));
+		assertFalse(sender.isAlive());
+		Loopback.await(() -> handled.size() == COUNT, "all messages");
+		for (int i = 0; i < COUNT; i++)
+			assertEquals(i, handled.get(i));
+	}
+}
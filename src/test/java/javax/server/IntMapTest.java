@@ -0,0 +1,135 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class IntMapTest {
+
+	@Test
+	void putGetRemove() {
+		IntMap<String> map = new IntMap<>();
+		assertNull(map.put(1, "a"));
+		assertNull(map.put(0, "zero"));
+		assertNull(map.put(-7, "negative"));
+		assertEquals("a", map.put(1, "b"));
+
+		assertEquals("b", map.get(1));
+		assertEquals("zero", map.get(0));
+		assertEquals("negative", map.get(-7));
+		assertNull(map.get(2));
+		assertEquals(3, map.size());
+
+		assertEquals("b", map.remove(1));
+		assertNull(map.remove(1));
+		assertFalse(map.containsKey(1));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	void putIfAbsentKeepsExisting() {
+		IntMap<String> map = new IntMap<>();
+		assertNull(map.putIfAbsent(5, "a"));
+		assertEquals("a", map.putIfAbsent(5, "b"));
+		assertEquals("a", map.get(5));
+	}
+
+	@Test
+	void removeOnlyTheGivenValue() {
+		IntMap<String> map = new IntMap<>();
+		String a = "a";
+		map.put(5, a);
+		assertFalse(map.remove(5, new String("a")));
+		assertFalse(map.remove(5, null));
+		assertTrue(map.remove(5, a));
+		assertNull(map.get(5));
+	}
+
+	@Test
+	void rejectsNullValues() {
+		assertThrows(NullPointerException.class, () -> new IntMap<String>().put(1, null));
+	}
+
+	@Test
+	void growsAndKeepsEveryEntry() {
+		IntMap<Integer> map = new IntMap<>();
+		for (int i = 0; i < 10_000; i++)
+			map.put(i * 16, i);
+		assertEquals(10_000, map.size());
+		for (int i = 0; i < 10_000; i++)
+			assertEquals(i, map.get(i * 16));
+		assertNull(map.get(1));
+	}
+
+	@Test
+	void reclaimsTombstones() {
+		IntMap<Integer> map = new IntMap<>();
+		map.put(-1, -1);
+		// sequential ids, as clients come and go
+		for (int i = 0; i < 100_000; i++) {
+			map.put(i, i);
+			assertEquals(i, map.remove(i));
+		}
+		assertEquals(1, map.size());
+		assertEquals(-1, map.get(-1));
+		assertNull(map.get(99_999));
+	}
+
+	@Test
+	void iteratesLiveValues() {
+		IntMap<Integer> map = new IntMap<>();
+		for (int i = 0; i < 100; i++)
+			map.put(i, i);
+		for (int i = 0; i < 100; i += 2)
+			map.remove(i);
+
+		Set<Integer> seen = new HashSet<>();
+		for (Integer v : map.values())
+			assertTrue(seen.add(v));
+		assertEquals(50, seen.size());
+		assertEquals(50, map.values().size());
+		for (Integer v : seen)
+			assertEquals(1, v % 2);
+	}
+
+	@Test
+	void iteratorRemoves() {
+		IntMap<Integer> map = new IntMap<>();
+		for (int i = 0; i < 10; i++)
+			map.put(i, i);
+		for (Iterator<Integer> it = map.values().iterator(); it.hasNext();)
+			if (it.next() < 5)
+				it.remove();
+		assertEquals(5, map.size());
+		assertNull(map.get(4));
+		assertEquals(5, map.get(5));
+	}
+
+	@Test
+	void readersSeeEntriesWhileWritersRebuild() throws InterruptedException {
+		IntMap<Integer> map = new IntMap<>();
+		map.put(-1, -1);
+		boolean[] failed = { false };
+		Thread reader = new Thread(() -> {
+			for (int i = 0; i < 1_000_000; i++)
+				if (!Integer.valueOf(-1).equals(map.get(-1)))
+					failed[0] = true;
+		});
+		reader.start();
+		for (int i = 0; i < 100_000; i++) {
+			map.put(i, i);
+			if (i % 3 != 0)
+				map.remove(i);
+		}
+		reader.join();
+		assertFalse(failed[0]);
+	}
+}
@@ -0,0 +1,45 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.function.BooleanSupplier;
+
+/*
+ * Helpers for tests running a server and its clients over loopback.
+ */
+final class Loopback {
+
+	private Loopback() {
+	}
+
+	/*
+	 * A port nothing listens on right now.
+	 */
+	static int freePort() {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/*
+	 * Waits up to 10 seconds for the condition, failing the test otherwise.
+	 */
+	static void await(BooleanSupplier condition, String what) {
+		long deadline = System.nanoTime() + 10_000_000_000L;
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline)
+				fail("Timed out waiting for " + what);
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail("Interrupted waiting for " + what);
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class MessageCodecTest {
+
+	/*
+	 * Strings as plain UTF, anything else serialized.
+	 */
+	private static class StringCodec extends SerializationCodec {
+		private static final int STRING = 7;
+
+		final AtomicInteger encoded = new AtomicInteger();
+		final AtomicInteger decoded = new AtomicInteger();
+
+		@Override
+		public int typeId(Object msg) {
+			return msg instanceof String ? STRING : super.typeId(msg);
+		}
+
+		@Override
+		public void encode(Object msg, DataOutputStream out) throws IOException {
+			if (!(msg instanceof String)) {
+				super.encode(msg, out);
+				return;
+			}
+			encoded.incrementAndGet();
+			out.writeUTF((String) msg);
+		}
+
+		@Override
+		public Object decode(int typeId, DataInputStream in) throws IOException, ClassNotFoundException {
+			if (typeId != STRING)
+				return super.decode(typeId, in);
+			decoded.incrementAndGet();
+			return in.readUTF();
+		}
+	}
+
+	private final int port = Loopback.freePort();
+	private final StringCodec codec = new StringCodec();
+	private Server server;
+	private Client client;
+	private final List<Object> received = Collections.synchronizedList(new ArrayList<>());
+
+	@AfterEach
+	void shutDown() {
+		if (client != null)
+			client.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer(int selectorThreads) {
+		server = new Server(port);
+		server.setSelectorThreadCount(selectorThreads);
+		server.setMessageCodec(codec);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				received.add(msg);
+				if (msg instanceof String)
+					server.send(msg + " back", client.getClientId());
+			}
+		});
+		assertTrue(server.start());
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void customCodecCarriesBothWays(int selectorThreads) {
+		startServer(selectorThreads);
+		List<Object> replies = Collections.synchronizedList(new ArrayList<>());
+		client = new Client("localhost", port);
+		client.setMessageCodec(codec);
+		client.addClientListener(new ClientAdapter() {
+			@Override
+			public void messageReceived(Client client, Object msg) {
+				replies.add(msg);
+			}
+		});
+		assertTrue(client.start());
+
+		for (int i = 0; i < 100; i++)
+			assertTrue(client.send("message " + i));
+		assertTrue(client.send(42));
+		Loopback.await(() -> replies.size() == 100 && received.size() == 101, "all messages");
+
+		for (int i = 0; i < 100; i++) {
+			assertEquals("message " + i, received.get(i));
+			assertEquals("message " + i + " back", replies.get(i));
+		}
+		assertEquals(42, received.get(100));
+		// the strings, both ways, never went through serialization
+		assertEquals(200, codec.encoded.get());
+		assertEquals(200, codec.decoded.get());
+	}
+
+	/*
+	 * A peer may reset its Object stream after the handshake; the markers
+	 * precede the first frame, possibly in a separate read.
+	 */
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void skipsResetsBeforeTheFirstFrame(int selectorThreads) throws Exception {
+		startServer(selectorThreads);
+		try (Socket socket = new Socket("localhost", port)) {
+			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			assertEquals(ServerCommand.HANDSHAKE, in.readObject());
+			out.writeObject(ClientCommand.HANDSHAKE);
+			out.flush();
+			in.readInt();
+			assertEquals(ServerCommand.CONNECTED_FRAMED, in.readObject());
+			in.readInt(); // compression threshold
+			in.readInt(); // no side channel
+
+			out.reset();
+			out.reset();
+			out.flush();
+			Thread.sleep(50);
+
+			ByteBuffer first = Frames.encode(codec, "first");
+			ByteBuffer second = Frames.encode(codec, "second");
+			OutputStream raw = socket.getOutputStream();
+			raw.write(first.array(), first.position(), first.remaining());
+			raw.write(second.array(), second.position(), second.remaining());
+			raw.flush();
+
+			Loopback.await(() -> received.size() == 2, "both frames");
+			assertEquals(List.of("first", "second"), received);
+		}
+	}
+}
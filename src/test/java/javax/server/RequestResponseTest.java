@@ -0,0 +1,157 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class RequestResponseTest {
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private final List<Client> clients = new ArrayList<>();
+
+	@AfterEach
+	void shutDown() {
+		for (Client c : clients)
+			c.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private Client connect() {
+		Client client = new Client("localhost", port);
+		clients.add(client);
+		assertTrue(client.start());
+		return client;
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void repliesMatchTheirRequestsInAnyOrder(int selectorThreads) throws Exception {
+		server = new Server(port);
+		server.setSelectorThreadCount(selectorThreads);
+		List<Request> received = Collections.synchronizedList(new ArrayList<>());
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				received.add((Request) msg);
+				// answer all at once, last first
+				if (received.size() == 10)
+					for (int i = 9; i >= 0; i--)
+						client.reply(received.get(i), received.get(i).getPayload() + "!");
+			}
+		});
+		assertTrue(server.start());
+		Client client = connect();
+
+		List<CompletableFuture<Object>> futures = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			futures.add(client.request("r" + i, Duration.ofSeconds(10)));
+		for (int i = 0; i < 10; i++)
+			assertEquals("r" + i + "!", futures.get(i).get(10, TimeUnit.SECONDS));
+		Loopback.await(() -> client.getPendingRequestCount() == 0, "pending requests");
+	}
+
+	@Test
+	void unansweredRequestTimesOut() throws Exception {
+		server = new Server(port);
+		assertTrue(server.start());
+		Client client = connect();
+
+		CompletableFuture<Object> future = client.request("ignored", Duration.ofMillis(100));
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+		assertInstanceOf(TimeoutException.class, e.getCause());
+		Loopback.await(() -> client.getPendingRequestCount() == 0, "pending requests");
+	}
+
+	@Test
+	void shutDownFailsPendingRequests() throws Exception {
+		server = new Server(port);
+		assertTrue(server.start());
+		Client client = connect();
+
+		CompletableFuture<Object> future = client.request("ignored", null);
+		client.shutDown();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+		assertInstanceOf(IOException.class, e.getCause());
+	}
+
+	@Test
+	void nestedEnvelopesAreRejected() {
+		Request nested = new Request(1, new Request(2, "payload"));
+		assertThrows(IllegalArgumentException.class, () -> Frames.encode(Frames.DEFAULT_CODEC, nested));
+
+		// REQUEST, id, REQUEST, id, REQUEST, id
+		ByteBuffer body = ByteBuffer.allocate(12 * 3);
+		for (int i = 0; i < 3; i++)
+			body.putInt(-3).putLong(i);
+		assertThrows(StreamCorruptedException.class, () -> Frames.decode(Frames.DEFAULT_CODEC, body.array(), 0, body.capacity()));
+	}
+
+	/*
+	 * A peer sending deeply nested envelopes must only lose its own
+	 * connection, not the selector thread shared with others.
+	 */
+	@Test
+	void deeplyNestedFrameOnlyDropsItsConnection() throws Exception {
+		server = new Server(port);
+		server.setSelectorThreadCount(1);
+		List<Object> received = Collections.synchronizedList(new ArrayList<>());
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				received.add(msg);
+			}
+		});
+		assertTrue(server.start());
+		Client client = connect();
+
+		try (Socket socket = new Socket("localhost", port)) {
+			ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			assertEquals(ServerCommand.HANDSHAKE, in.readObject());
+			out.writeObject(ClientCommand.HANDSHAKE);
+			out.flush();
+			in.readInt();
+			assertEquals(ServerCommand.CONNECTED_FRAMED, in.readObject());
+			in.readInt(); // compression threshold
+			assertEquals(-1, in.readInt()); // no side channel
+
+			int depth = 200_000;
+			DataOutputStream frame = new DataOutputStream(socket.getOutputStream());
+			frame.writeInt(depth * 12);
+			for (int i = 0; i < depth; i++) {
+				frame.writeInt(-3);
+				frame.writeLong(i);
+			}
+			frame.flush();
+
+			Loopback.await(() -> server.getClients().size() == 1, "the nesting peer to be dropped");
+		}
+
+		assertTrue(client.send("still served"));
+		Loopback.await(() -> received.contains("still served"), "the other client's message");
+	}
+}
@@ -0,0 +1,157 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SelectorTransportTest {
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private final List<Client> clients = new ArrayList<>();
+	private final List<Object> received = Collections.synchronizedList(new ArrayList<>());
+
+	@AfterEach
+	void shutDown() {
+		for (Client c : clients)
+			c.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer(MessageCodec codec) {
+		server = new Server(port);
+		server.setSelectorThreadCount(1);
+		server.setMessageCodec(codec);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				received.add(msg);
+			}
+		});
+		assertTrue(server.start());
+	}
+
+	private Client connect(MessageCodec codec) {
+		Client client = new Client("localhost", port);
+		if (codec != null)
+			client.setMessageCodec(codec);
+		clients.add(client);
+		assertTrue(client.start());
+		return client;
+	}
+
+	/*
+	 * Completes the handshake by hand, leaving the socket ready for frames.
+	 */
+	private static Socket handshake(int port) throws Exception {
+		Socket socket = new Socket("localhost", port);
+		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+		assertEquals(ServerCommand.HANDSHAKE, in.readObject());
+		out.writeObject(ClientCommand.HANDSHAKE);
+		out.flush();
+		in.readInt();
+		assertEquals(ServerCommand.CONNECTED_FRAMED, in.readObject());
+		in.readInt(); // compression threshold
+		in.readInt(); // no side channel
+		return socket;
+	}
+
+	private static int readBufferCapacity(Server.ConnectionToClient client) throws Exception {
+		Field field = Server.ConnectionToClient.class.getDeclaredField("readBuffer");
+		field.setAccessible(true);
+		return ((ByteBuffer) field.get(client)).capacity();
+	}
+
+	@Test
+	void deliversInOrder() {
+		startServer(null);
+		Client client = connect(null);
+		for (int i = 0; i < 10_000; i++)
+			assertTrue(client.send(i));
+		Loopback.await(() -> received.size() == 10_000, "all messages");
+		for (int i = 0; i < 10_000; i++)
+			assertEquals(i, received.get(i));
+	}
+
+	@Test
+	void deliversFramesLargerThanTheReadBuffer() {
+		startServer(null);
+		Client client = connect(null);
+		byte[] large = new byte[1 << 20];
+		large[large.length - 1] = 7;
+		assertTrue(client.send(large));
+		assertTrue(client.send("after"));
+		Loopback.await(() -> received.size() == 2, "both messages");
+		assertEquals(7, ((byte[]) received.get(0))[large.length - 1]);
+		assertEquals("after", received.get(1));
+	}
+
+	@Test
+	void readBufferOnlyGrowsWithReceivedBytes() throws Exception {
+		startServer(null);
+		try (Socket socket = handshake(port)) {
+			Loopback.await(() -> server.getClients().size() == 1, "the connection");
+			Server.ConnectionToClient client = server.getClients().iterator().next();
+			int initial = readBufferCapacity(client);
+
+			// claims the largest frame, then sends a little of it
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeInt(Frames.MAX_FRAME_LENGTH);
+			out.write(new byte[initial]);
+			out.flush();
+
+			Loopback.await(() -> {
+				try {
+					return readBufferCapacity(client) > initial;
+				} catch (Exception e) {
+					throw new AssertionError(e);
+				}
+			}, "the buffer to grow");
+			Thread.sleep(100);
+			assertTrue(readBufferCapacity(client) <= 4 * initial);
+		}
+	}
+
+	/*
+	 * An Error decoding one client's frame, like StackOverflowError, must not
+	 * take the other clients of the selector thread with it.
+	 */
+	@Test
+	void errorOnlyDropsItsConnection() {
+		MessageCodec codec = new SerializationCodec() {
+			@Override
+			public Object decode(int typeId, DataInputStream in) throws IOException, ClassNotFoundException {
+				Object msg = super.decode(typeId, in);
+				if ("poison".equals(msg))
+					throw new StackOverflowError("decoding poison");
+				return msg;
+			}
+		};
+		startServer(codec);
+		Client victim = connect(codec);
+		Client other = connect(codec);
+		Loopback.await(() -> server.getClients().size() == 2, "both connections");
+
+		assertTrue(victim.send("poison"));
+		Loopback.await(() -> server.getClients().size() == 1, "the poisoned connection to be dropped");
+
+		assertTrue(other.send("still served"));
+		Loopback.await(() -> received.contains("still served"), "the other client's message");
+	}
+}
@@ -0,0 +1,133 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class SendOverflowTest {
+
+	private static final int CAPACITY = 4;
+	private static final int PAYLOAD = 1 << 20;
+
+	private final int port = Loopback.freePort();
+	private Server server;
+
+	@AfterEach
+	void shutDown() {
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer(int selectorThreads, OverflowPolicy policy) {
+		server = new Server(port);
+		server.setSelectorThreadCount(selectorThreads);
+		server.setSendQueueCapacity(CAPACITY);
+		server.setSendOverflowPolicy(policy);
+		assertTrue(server.start());
+	}
+
+	/*
+	 * Completes the handshake by hand, and then doesn't read until told to.
+	 */
+	private Socket slowReader() throws Exception {
+		Socket socket = new Socket("localhost", port);
+		ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+		assertEquals(ServerCommand.HANDSHAKE, in.readObject());
+		out.writeObject(ClientCommand.HANDSHAKE);
+		out.flush();
+		in.readInt();
+		if (in.readObject() == ServerCommand.CONNECTED_FRAMED)
+			in.readInt(); // compression threshold
+		in.readInt(); // no side channel
+		Loopback.await(() -> server.getClients().size() == 1, "the connection");
+		return socket;
+	}
+
+	private int clientId() {
+		return server.getClients().iterator().next().getClientId();
+	}
+
+	/*
+	 * Sends until the socket buffers and the queue are full, and a send
+	 * overflows; returns its future.
+	 */
+	private CompletableFuture<Boolean> overflow(int id) {
+		for (int i = 0; i < 1000; i++) {
+			CompletableFuture<Boolean> f = server.sendAsync(new byte[PAYLOAD], id);
+			if (f.isDone() && !f.join())
+				return f;
+		}
+		throw new AssertionError("never overflowed");
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void dropKeepsTheConnection(int selectorThreads) throws Exception {
+		startServer(selectorThreads, OverflowPolicy.DROP);
+		try (Socket socket = slowReader()) {
+			overflow(clientId());
+			Thread.sleep(100);
+			assertEquals(1, server.getClients().size());
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void disconnectDropsTheConnection(int selectorThreads) throws Exception {
+		startServer(selectorThreads, OverflowPolicy.DISCONNECT);
+		try (Socket socket = slowReader()) {
+			int id = clientId();
+			overflow(id);
+			Loopback.await(() -> server.getClients().isEmpty(), "the slow client to be dropped");
+			assertFalse(server.sendAsync(new byte[1], id).join());
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void blockWaitsForRoom(int selectorThreads) throws Exception {
+		startServer(selectorThreads, OverflowPolicy.BLOCK);
+		try (Socket socket = slowReader()) {
+			int id = clientId();
+			List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+			Thread sender = new Thread(() -> {
+				for (int i = 0; i < 64; i++)
+					futures.add(server.sendAsync(new byte[PAYLOAD], id));
+			});
+			sender.start();
+			Loopback.await(() -> sender.getState() == Thread.State.WAITING, "the sender to block");
+			assertTrue(sender.isAlive());
+
+			// reading makes room, and the sender goes on
+			Thread reader = new Thread(() -> {
+				try {
+					InputStream in = socket.getInputStream();
+					while (in.skip(PAYLOAD) >= 0 && in.read() >= 0)
+						;
+				} catch (Exception e) {
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+			sender.join(TimeUnit.SECONDS.toMillis(10));
+			assertFalse(sender.isAlive());
+			for (CompletableFuture<Boolean> f : futures)
+				assertTrue(f.get(10, TimeUnit.SECONDS));
+			assertEquals(1, server.getClients().size());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SpscQueueTest {
+
+	@Test
+	void firstInFirstOut() {
+		SpscQueue<Integer> queue = new SpscQueue<>(8);
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+
+		for (int i = 0; i < 5; i++)
+			assertTrue(queue.offer(i));
+		assertFalse(queue.isEmpty());
+		for (int i = 0; i < 5; i++)
+			assertEquals(i, queue.poll());
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	void boundedByCapacity() {
+		SpscQueue<Integer> queue = new SpscQueue<>(4);
+		for (int i = 0; i < 4; i++)
+			assertTrue(queue.offer(i));
+		assertFalse(queue.offer(4));
+
+		assertEquals(0, queue.poll());
+		assertTrue(queue.offer(4));
+		assertFalse(queue.offer(5));
+	}
+
+	@Test
+	void capacityRoundsUpToAPowerOfTwo() {
+		SpscQueue<Integer> queue = new SpscQueue<>(5);
+		int offered = 0;
+		while (queue.offer(offered))
+			offered++;
+		assertEquals(8, offered);
+	}
+
+	@Test
+	void wrapsAround() {
+		SpscQueue<Integer> queue = new SpscQueue<>(4);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(queue.offer(i));
+			assertTrue(queue.offer(-i));
+			assertEquals(i, queue.poll());
+			assertEquals(-i, queue.poll());
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	void handsOverBetweenThreadsInOrder() throws InterruptedException {
+		int count = 100_000;
+		SpscQueue<Integer> queue = new SpscQueue<>(64);
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < count; i++)
+				while (!queue.offer(i))
+					Thread.yield();
+		});
+		producer.start();
+
+		for (int i = 0; i < count; i++) {
+			Integer e;
+			while ((e = queue.poll()) == null)
+				Thread.yield();
+			assertEquals(i, e);
+		}
+		producer.join();
+		assertTrue(queue.isEmpty());
+	}
+}
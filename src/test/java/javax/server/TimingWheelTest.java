@@ -0,0 +1,115 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static long millis(long millis) {
+		return TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	@Test
+	void neverExpiresEarly() {
+		TimingWheel wheel = new TimingWheel(TICK);
+		int[] runs = { 0 };
+		long before = System.nanoTime();
+		wheel.schedule(now -> {
+			runs[0]++;
+			return -1;
+		}, millis(10));
+
+		wheel.advance(before + millis(9));
+		assertEquals(0, runs[0]);
+
+		wheel.advance(System.nanoTime() + millis(12));
+		assertEquals(1, runs[0]);
+
+		// done, not run again
+		wheel.advance(System.nanoTime() + millis(100));
+		assertEquals(1, runs[0]);
+	}
+
+	@Test
+	void reschedulesByTheReturnedDelay() {
+		TimingWheel wheel = new TimingWheel(TICK);
+		int[] runs = { 0 };
+		long base = System.nanoTime();
+		wheel.schedule(now -> ++runs[0] < 3 ? millis(5) : -1, 0);
+
+		for (int i = 1; i <= 10; i++)
+			wheel.advance(base + millis(10 * i));
+		assertEquals(3, runs[0]);
+	}
+
+	@Test
+	void waitsMoreThanATurn() {
+		TimingWheel wheel = new TimingWheel(TICK);
+		int[] runs = { 0 };
+		long before = System.nanoTime();
+		// the wheel turns every 512 ticks
+		wheel.schedule(now -> {
+			runs[0]++;
+			return -1;
+		}, millis(1500));
+
+		wheel.advance(before + millis(600));
+		assertEquals(0, runs[0]);
+		wheel.advance(before + millis(1400));
+		assertEquals(0, runs[0]);
+		wheel.advance(System.nanoTime() + millis(1600));
+		assertEquals(1, runs[0]);
+	}
+
+	@Test
+	void runsTimeoutsByDeadline() {
+		TimingWheel wheel = new TimingWheel(TICK);
+		StringBuilder order = new StringBuilder();
+		wheel.schedule(now -> {
+			order.append('b');
+			return -1;
+		}, millis(20));
+		wheel.schedule(now -> {
+			order.append('a');
+			return -1;
+		}, millis(5));
+		wheel.schedule(now -> {
+			order.append('c');
+			return -1;
+		}, millis(200));
+
+		long after = System.nanoTime();
+		wheel.advance(after + millis(10));
+		wheel.advance(after + millis(30));
+		assertEquals("ab", order.toString());
+		wheel.advance(after + millis(210));
+		assertEquals("abc", order.toString());
+	}
+
+	@Test
+	void failingTimeoutDoesNotDropTheOthers() {
+		TimingWheel wheel = new TimingWheel(TICK);
+		int[] runs = { 0 };
+		long before = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			boolean fail = i == 1;
+			wheel.schedule(now -> {
+				runs[0]++;
+				if (fail)
+					throw new IllegalStateException("listener failed");
+				return millis(5);
+			}, millis(5));
+		}
+
+		wheel.advance(before + millis(1000));
+		assertEquals(3, runs[0]);
+		// the failed one is dropped, the others run again
+		wheel.advance(before + millis(2000));
+		assertEquals(5, runs[0]);
+	}
+}
@@ -0,0 +1,158 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class TlsTest {
+
+	private static final char[] PASSWORD = "secret".toCharArray();
+
+	private static SSLContext serverContext;
+	private static SSLContext clientContext;
+
+	private final int port = Loopback.freePort();
+	private final List<Object> received = Collections.synchronizedList(new ArrayList<>());
+	private Server server;
+	private Client client;
+
+	/*
+	 * A self signed certificate for localhost, made by the JDK's keytool.
+	 */
+	@BeforeAll
+	static void createContexts(@TempDir Path dir) throws Exception {
+		Path file = dir.resolve("tls.p12");
+		Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+				"-genkeypair", "-alias", "server", "-keyalg", "EC", "-dname", "CN=localhost", "-ext",
+				"SAN=dns:localhost", "-validity", "2", "-storetype", "PKCS12", "-keystore", file.toString(),
+				"-storepass", "secret", "-keypass", "secret").inheritIO().start();
+		assertEquals(0, keytool.waitFor());
+
+		KeyStore keys = KeyStore.getInstance(file.toFile(), PASSWORD);
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keys, PASSWORD);
+		serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+
+		KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+		trusted.load(null, null);
+		trusted.setCertificateEntry("server", keys.getCertificate("server"));
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(trusted);
+		clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, tmf.getTrustManagers(), null);
+	}
+
+	@AfterEach
+	void shutDown() {
+		if (client != null)
+			client.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer(int selectorThreads) {
+		server = new Server(port);
+		server.setSelectorThreadCount(selectorThreads);
+		server.setSSLContext(serverContext);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				received.add(msg);
+				server.send((Integer) msg + 1, client.getClientId());
+			}
+		});
+		assertTrue(server.start());
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void encryptsBothWays(int selectorThreads) {
+		startServer(selectorThreads);
+		List<Object> replies = Collections.synchronizedList(new ArrayList<>());
+		client = new Client("localhost", port);
+		client.setSSLContext(clientContext);
+		client.addClientListener(new ClientAdapter() {
+			@Override
+			public void messageReceived(Client client, Object msg) {
+				replies.add(msg);
+			}
+		});
+		assertTrue(client.start());
+
+		// a burst, decrypted in far fewer reads than messages
+		for (int i = 0; i < 1000; i++)
+			assertTrue(client.send(i));
+		Loopback.await(() -> replies.size() == 1000, "all replies");
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, received.get(i));
+			assertEquals(i + 1, replies.get(i));
+		}
+	}
+
+	@Test
+	void selfSignedCertificateIsNotTrustedByDefault() throws Exception {
+		startServer(1);
+		client = new Client("localhost", port);
+		client.setSSLContext(SSLContext.getDefault());
+		assertFalse(client.start());
+		assertTrue(server.getClients().isEmpty());
+	}
+
+	/*
+	 * Frames sent right behind the handshake are decrypted along with it, on
+	 * the authentication thread; the selector must still deliver them,
+	 * although the socket has nothing more to read.
+	 */
+	@Test
+	void deliversFramesThatArrivedWithTheHandshake() throws Exception {
+		startServer(1);
+		try (SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("localhost", port)) {
+			socket.startHandshake();
+
+			// a single write, so a single TLS record
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(ClientCommand.HANDSHAKE);
+			out.flush();
+			for (int i = 0; i < 3; i++) {
+				ByteBuffer frame = Frames.encode(Frames.DEFAULT_CODEC, i);
+				bytes.write(frame.array(), frame.position(), frame.remaining());
+			}
+			OutputStream raw = socket.getOutputStream();
+			raw.write(bytes.toByteArray());
+			raw.flush();
+
+			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			assertEquals(ServerCommand.HANDSHAKE, in.readObject());
+			in.readInt();
+			assertEquals(ServerCommand.CONNECTED_FRAMED, in.readObject());
+
+			Loopback.await(() -> received.size() == 3, "the early frames");
+			assertEquals(List.of(0, 1, 2), received);
+		}
+	}
+}
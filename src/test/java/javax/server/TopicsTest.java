@@ -0,0 +1,93 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class TopicsTest {
+
+	@Test
+	void matchesExactTopics() {
+		Topics<String> topics = new Topics<>();
+		topics.add("chat.room1", "a");
+		topics.add("chat.room2", "b");
+
+		assertEquals(Set.of("a"), topics.match("chat.room1"));
+		assertEquals(Set.of(), topics.match("chat"));
+		assertEquals(Set.of(), topics.match("chat.room1.typing"));
+	}
+
+	@Test
+	void starMatchesOneSegment() {
+		Topics<String> topics = new Topics<>();
+		topics.add("chat.*.typing", "a");
+
+		assertEquals(Set.of("a"), topics.match("chat.room1.typing"));
+		assertEquals(Set.of(), topics.match("chat.typing"));
+		assertEquals(Set.of(), topics.match("chat.room1.room2.typing"));
+	}
+
+	@Test
+	void hashMatchesTheRest() {
+		Topics<String> topics = new Topics<>();
+		topics.add("chat.#", "a");
+		topics.add("#", "all");
+
+		assertEquals(Set.of("a", "all"), topics.match("chat"));
+		assertEquals(Set.of("a", "all"), topics.match("chat.room1.typing"));
+		assertEquals(Set.of("all"), topics.match("news"));
+	}
+
+	@Test
+	void matchesEachSubscriberOnce() {
+		Topics<String> topics = new Topics<>();
+		topics.add("chat.room1", "a");
+		topics.add("chat.*", "a");
+		topics.add("#", "a");
+
+		assertEquals(Set.of("a"), topics.match("chat.room1"));
+	}
+
+	@Test
+	void addAndRemoveReportChanges() {
+		Topics<String> topics = new Topics<>();
+		assertTrue(topics.add("chat.room1", "a"));
+		assertFalse(topics.add("chat.room1", "a"));
+
+		assertFalse(topics.remove("chat.room1", "b"));
+		assertFalse(topics.remove("chat.room2", "a"));
+		assertTrue(topics.remove("chat.room1", "a"));
+		assertFalse(topics.remove("chat.room1", "a"));
+		assertEquals(Set.of(), topics.match("chat.room1"));
+	}
+
+	@Test
+	void removeKeepsOtherSubscriptions() {
+		Topics<String> topics = new Topics<>();
+		topics.add("chat", "a");
+		topics.add("chat.room1", "b");
+		topics.remove("chat.room1", "b");
+		topics.add("chat.room1.typing", "c");
+
+		assertEquals(Set.of("a"), topics.match("chat"));
+		assertEquals(Set.of("c"), topics.match("chat.room1.typing"));
+	}
+
+	@Test
+	void rejectsInvalidTopics() {
+		Topics<String> topics = new Topics<>();
+		assertThrows(NullPointerException.class, () -> topics.add(null, "a"));
+		assertThrows(IllegalArgumentException.class, () -> topics.add("", "a"));
+		assertThrows(IllegalArgumentException.class, () -> topics.add("chat..room1", "a"));
+		assertThrows(IllegalArgumentException.class, () -> topics.add("chat.#.typing", "a"));
+
+		topics.add("chat.*", "a");
+		assertThrows(IllegalArgumentException.class, () -> topics.match("chat.*"));
+		assertThrows(IllegalArgumentException.class, () -> topics.match("chat.#"));
+	}
+}
@@ -0,0 +1,123 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class UnixSocketTest {
+
+	@TempDir
+	Path dir;
+
+	private final List<Server> servers = new ArrayList<>();
+	private Client client;
+
+	@AfterEach
+	void shutDown() {
+		if (client != null)
+			client.shutDown();
+		for (Server s : servers)
+			s.shutDown();
+	}
+
+	private Server server(int selectorThreads, Path path) {
+		Server server = new Server(Loopback.freePort());
+		server.setSelectorThreadCount(selectorThreads);
+		server.setUnixSocketPath(path);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				server.send("echo " + msg, client.getClientId());
+			}
+		});
+		servers.add(server);
+		return server;
+	}
+
+	/*
+	 * Connects over the socket file, and waits for an echo.
+	 */
+	private void assertServed(Path path) {
+		List<Object> replies = new ArrayList<>();
+		client = new Client(path);
+		client.addClientListener(new ClientAdapter() {
+			@Override
+			public void messageReceived(Client client, Object msg) {
+				synchronized (replies) {
+					replies.add(msg);
+				}
+			}
+		});
+		assertTrue(client.start());
+		assertTrue(client.send("hello"));
+		Loopback.await(() -> {
+			synchronized (replies) {
+				return replies.contains("echo hello");
+			}
+		}, "the echo");
+		client.shutDown();
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 0, 1 })
+	void servesOverTheSocketFile(int selectorThreads) {
+		Path path = dir.resolve("server.sock");
+		Server server = server(selectorThreads, path);
+		assertTrue(server.start());
+		assertTrue(Files.exists(path));
+		assertServed(path);
+
+		server.shutDown();
+		assertFalse(Files.exists(path));
+	}
+
+	@Test
+	void replacesStaleSocketFile() throws Exception {
+		Path path = dir.resolve("stale.sock");
+		// closing the channel leaves the file, as a crashed server would
+		ServerSocketChannel gone = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		gone.bind(UnixDomainSocketAddress.of(path));
+		gone.close();
+		assertTrue(Files.exists(path));
+
+		assertTrue(server(1, path).start());
+		assertServed(path);
+	}
+
+	@Test
+	void refusesSocketInUse() {
+		Path path = dir.resolve("busy.sock");
+		assertTrue(server(1, path).start());
+
+		Server second = server(1, path);
+		assertFalse(second.start());
+		assertFalse(second.running());
+
+		// the first one keeps its socket file
+		assertTrue(Files.exists(path));
+		assertServed(path);
+	}
+
+	@Test
+	void refusesRegularFile() throws Exception {
+		Path path = dir.resolve("data.txt");
+		Files.writeString(path, "keep me");
+
+		assertFalse(server(1, path).start());
+		assertEquals("keep me", Files.readString(path));
+	}
+}
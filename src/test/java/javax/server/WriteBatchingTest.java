@@ -0,0 +1,123 @@
+package javax.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class WriteBatchingTest {
+
+	private final int port = Loopback.freePort();
+	private Server server;
+	private Client client;
+	private final List<Object> serverReceived = Collections.synchronizedList(new ArrayList<>());
+	private final List<Object> clientReceived = Collections.synchronizedList(new ArrayList<>());
+
+	@AfterEach
+	void shutDown() {
+		if (client != null)
+			client.shutDown();
+		if (server != null)
+			server.shutDown();
+	}
+
+	private void startServer(int batchSize, long linger) {
+		server = new Server(port);
+		server.setWriteBatchSize(batchSize);
+		server.setWriteLinger(linger);
+		server.addServerListener(new ServerAdapter() {
+			@Override
+			public void messageReceived(Server server, Server.ConnectionToClient client, Object msg) {
+				serverReceived.add(msg);
+			}
+		});
+		assertTrue(server.start());
+	}
+
+	private int connect(int batchSize, long linger) {
+		client = new Client("localhost", port);
+		client.setWriteBatchSize(batchSize);
+		client.setWriteLinger(linger);
+		client.addClientListener(new ClientAdapter() {
+			@Override
+			public void messageReceived(Client client, Object msg) {
+				clientReceived.add(msg);
+			}
+		});
+		assertTrue(client.start());
+		Loopback.await(() -> server.getClients().size() == 1, "the connection");
+		return client.getClientId();
+	}
+
+	@Test
+	void fullBatchDoesNotWaitForTheLinger() throws Exception {
+		startServer(10, 5000);
+		int id = connect(1, 0);
+
+		for (int i = 0; i < 9; i++)
+			server.sendAsync(i, id);
+		Thread.sleep(200);
+		assertEquals(0, clientReceived.size());
+
+		long start = System.nanoTime();
+		CompletableFuture<Boolean> last = server.sendAsync(9, id);
+		assertTrue(last.get(10, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		Loopback.await(() -> clientReceived.size() == 10, "the batch");
+	}
+
+	@Test
+	void lingerFlushesAPartialBatch() throws Exception {
+		startServer(100, 300);
+		int id = connect(1, 0);
+
+		List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			futures.add(server.sendAsync(i, id));
+		assertEquals(0, clientReceived.size());
+
+		for (CompletableFuture<Boolean> f : futures)
+			assertTrue(f.get(10, TimeUnit.SECONDS));
+		Loopback.await(() -> clientReceived.size() == 3, "the partial batch");
+		assertEquals(List.of(0, 1, 2), clientReceived);
+	}
+
+	@Test
+	void serverDrainsItsQueueOnDisconnect() throws Exception {
+		startServer(1000, 500);
+		int id = connect(1, 0);
+
+		List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			futures.add(server.sendAsync(i, id));
+		server.getClient(id).localShutDown();
+
+		for (CompletableFuture<Boolean> f : futures)
+			assertTrue(f.get(10, TimeUnit.SECONDS));
+		Loopback.await(() -> clientReceived.size() == 1000, "the queued messages");
+		for (int i = 0; i < 1000; i++)
+			assertEquals(i, clientReceived.get(i));
+	}
+
+	@Test
+	void clientDrainsItsQueueOnShutDown() {
+		startServer(1, 0);
+		connect(1000, 500);
+
+		// returns once queued
+		for (int i = 0; i < 500; i++)
+			assertTrue(client.send(i));
+		client.shutDown();
+
+		Loopback.await(() -> serverReceived.size() == 500, "the queued messages");
+		for (int i = 0; i < 500; i++)
+			assertEquals(i, serverReceived.get(i));
+	}
+}